@@ -0,0 +1,296 @@
+package winflex.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 压测数据源, 把输入文件映射到内存, 按记录交给worker, 不把数据加载到堆上
+ * <p>
+ * 打开时顺序扫描一遍文件建立记录偏移索引(每条记录8字节, 按8字节一组查找换行符), 之后{@link #next()}只需一次原子自增取得序号,
+ * 返回的记录是映射内存上的只读视图, 不复制数据. 视图属于调用线程, 在该线程下一次调用{@link #next()}前有效
+ * <p>
+ * 文件按{@link #SEGMENT_SIZE}分段映射, 相邻分段重叠{@link #MAX_RECORD_SIZE}字节, 保证每条记录完整地落在一个分段内,
+ * 因此单条记录不能超过{@link #MAX_RECORD_SIZE}
+ *
+ * <pre>
+ * Feeder keys = Feeder.csv(Paths.get("keys.csv")).circular();
+ * LoadRunner lr = LoadRunner.builder()
+ * .action(keys, record -> get(record))
+ * ...
+ * </pre>
+ *
+ * @see LoadRunner.LoadRunnberBuilder#action(Feeder, Feeder.Action)
+ * @author winflex
+ */
+public final class Feeder implements Closeable {
+
+    static final int SEGMENT_BITS = 30;
+    static final long SEGMENT_SIZE = 1L << SEGMENT_BITS;
+
+    /**
+     * 单条记录的最大字节数
+     */
+    public static final int MAX_RECORD_SIZE = 1 << 20;
+
+    /**
+     * 使用记录的事务
+     */
+    @FunctionalInterface
+    public interface Action {
+
+        /**
+         * @param record 只读视图, position到limit为记录内容, 只在本次调用期间有效
+         * @return 事务是否成功
+         */
+        boolean call(ByteBuffer record) throws Exception;
+    }
+
+    /**
+     * 每行一条记录, 行尾的\n或\r\n不包含在记录中, 空行忽略
+     */
+    public static Feeder csv(Path path) throws IOException {
+        return new Feeder(path, false);
+    }
+
+    /**
+     * 每条记录前为4字节大端长度
+     */
+    public static Feeder lengthPrefixed(Path path) throws IOException {
+        return new Feeder(path, true);
+    }
+
+    static final int SEQUENTIAL = 0, CIRCULAR = 1, RANDOM = 2;
+
+    static final long NEWLINES = 0x0A0A0A0A0A0A0A0AL;
+    static final long LOW_BITS = 0x7F7F7F7F7F7F7F7FL;
+
+    final FileChannel channel;
+    final boolean lengthPrefixed;
+    final MappedByteBuffer[] segments;
+    // 第i条记录位于[offsets[i], offsets[i + 1]), 末尾多一项文件长度. 长度由相邻偏移得出, 不单独保存;
+    // 长度前缀格式下偏移指向长度前缀, 按行格式下偏移指向行首, 行尾的换行与其后忽略的空行在取记录时去掉
+    final long[] offsets;
+    final long size;
+    final int count;
+    final AtomicLong cursor = new AtomicLong();
+    final ThreadLocal<ByteBuffer[]> views;
+    int mode = SEQUENTIAL;
+
+    private Feeder(Path path, boolean lengthPrefixed) throws IOException {
+        this.channel = FileChannel.open(path, StandardOpenOption.READ);
+        this.lengthPrefixed = lengthPrefixed;
+        try {
+            final long size = this.size = channel.size();
+            final int n = (int) ((size + SEGMENT_SIZE - 1) >>> SEGMENT_BITS);
+            this.segments = new MappedByteBuffer[n];
+            for (int i = 0; i < n; i++) {
+                final long position = (long) i << SEGMENT_BITS;
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, position,
+                        Math.min(size - position, SEGMENT_SIZE + MAX_RECORD_SIZE));
+            }
+
+            final Index index = lengthPrefixed ? indexLengthPrefixed(size) : indexLines(size);
+            this.count = index.count;
+            index.offsets[count] = size;
+            this.offsets = Arrays.copyOf(index.offsets, count + 1);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+        this.views = ThreadLocal.withInitial(() -> {
+            final ByteBuffer[] views = new ByteBuffer[segments.length];
+            for (int i = 0; i < views.length; i++) {
+                views[i] = segments[i].asReadOnlyBuffer();
+            }
+            return views;
+        });
+    }
+
+    /**
+     * 记录用完后从头开始
+     */
+    public Feeder circular() {
+        this.mode = CIRCULAR;
+        return this;
+    }
+
+    /**
+     * 每次随机取一条记录, 不会用完
+     */
+    public Feeder random() {
+        this.mode = RANDOM;
+        return this;
+    }
+
+    /**
+     * 记录总数
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * 取下一条记录, 多线程并发调用时每条记录只交给一个线程(随机模式除外)
+     *
+     * @return 只读视图, 在当前线程下一次调用前有效; 顺序模式下记录用完时返回null
+     */
+    public ByteBuffer next() {
+        if (count == 0) {
+            return null;
+        }
+        final int index;
+        switch (mode) {
+        case CIRCULAR:
+            index = (int) ((cursor.getAndIncrement() & Long.MAX_VALUE) % count);
+            break;
+        case RANDOM:
+            index = ThreadLocalRandom.current().nextInt(count);
+            break;
+        default:
+            final long i = cursor.getAndIncrement();
+            if (i >= count) {
+                return null;
+            }
+            index = (int) i;
+        }
+        return get(index);
+    }
+
+    /**
+     * 取第index条记录, 返回当前线程的只读视图
+     */
+    public ByteBuffer get(int index) {
+        long start = offsets[index];
+        final long end;
+        if (lengthPrefixed) {
+            start += 4;
+            end = offsets[index + 1];
+        } else {
+            end = lineEnd(start, offsets[index + 1]);
+        }
+        final int segment = (int) (start >>> SEGMENT_BITS);
+        final int position = (int) (start & (SEGMENT_SIZE - 1));
+        final ByteBuffer view = views.get()[segment];
+        // 通过Buffer调用, JDK 9+编译时不会链接到1.8上不存在的协变重载
+        ((Buffer) view).limit(position + (int) (end - start));
+        ((Buffer) view).position(position);
+        return view;
+    }
+
+    /**
+     * 从下一条记录的行首往回去掉行尾的\n或\r\n, 以及其间被忽略的空行, 与建立索引时的规则一致
+     */
+    private long lineEnd(long start, long next) {
+        long end = next;
+        while (end > start && byteAt(end - 1) == '\n') {
+            end--;
+            if (end > start && byteAt(end - 1) == '\r') {
+                end--;
+            }
+        }
+        if (end == size && end > start && byteAt(end - 1) == '\r') {
+            // 没有换行结尾的最后一行
+            end--;
+        }
+        return end;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private byte byteAt(long offset) {
+        return segments[(int) (offset >>> SEGMENT_BITS)].get((int) (offset & (SEGMENT_SIZE - 1)));
+    }
+
+    private Index indexLines(long size) throws IOException {
+        final Index index = new Index();
+        long lineStart = 0;
+        for (int s = 0; s < segments.length; s++) {
+            // 每次读8个字节, 用位运算同时比较, 小端序下低地址的字节在低位
+            final ByteBuffer segment = segments[s].duplicate().order(ByteOrder.LITTLE_ENDIAN);
+            final long base = (long) s << SEGMENT_BITS;
+            final int end = (int) Math.min(SEGMENT_SIZE, size - base);
+            int i = 0;
+            for (; i + 8 <= end; i += 8) {
+                final long x = segment.getLong(i) ^ NEWLINES;
+                // 等于\n的字节对应位置为0x80, 其余为0, 没有进位造成的误判
+                long found = ~(((x & LOW_BITS) + LOW_BITS) | x | LOW_BITS);
+                while (found != 0) {
+                    final long offset = base + i + (Long.numberOfTrailingZeros(found) >>> 3);
+                    addLine(index, lineStart, offset);
+                    lineStart = offset + 1;
+                    found &= found - 1;
+                }
+            }
+            for (; i < end; i++) {
+                if (segment.get(i) == '\n') {
+                    addLine(index, lineStart, base + i);
+                    lineStart = base + i + 1;
+                }
+            }
+        }
+        if (lineStart < size) {
+            addLine(index, lineStart, size);
+        }
+        return index;
+    }
+
+    private void addLine(Index index, long start, long end) throws IOException {
+        if (end > start && byteAt(end - 1) == '\r') {
+            end--;
+        }
+        if (end > start) {
+            index.add(start, end - start);
+        }
+    }
+
+    private Index indexLengthPrefixed(long size) throws IOException {
+        final Index index = new Index();
+        long offset = 0;
+        while (offset < size) {
+            if (size - offset < 4) {
+                throw new IOException("truncated record at " + offset);
+            }
+            final int length = (byteAt(offset) & 0xFF) << 24 | (byteAt(offset + 1) & 0xFF) << 16
+                    | (byteAt(offset + 2) & 0xFF) << 8 | (byteAt(offset + 3) & 0xFF);
+            if (length < 0 || offset + 4 + length > size) {
+                throw new IOException("truncated record at " + offset);
+            }
+            index.add(offset, length);
+            offset += 4 + length;
+        }
+        return index;
+    }
+
+    static final class Index {
+        // 末尾留一项给文件长度
+        long[] offsets = new long[1024];
+        int count;
+
+        void add(long offset, long length) throws IOException {
+            if (length + 4 > MAX_RECORD_SIZE) {
+                throw new IOException("record at " + offset + " is larger than " + MAX_RECORD_SIZE + " bytes");
+            }
+            if (count + 1 == offsets.length) {
+                if (count + 1 == Integer.MAX_VALUE - 8) {
+                    throw new IOException("too many records");
+                }
+                final int capacity = (int) Math.min((long) offsets.length << 1, Integer.MAX_VALUE - 8);
+                offsets = Arrays.copyOf(offsets, capacity);
+            }
+            offsets[count++] = offset;
+        }
+    }
+}
@@ -0,0 +1,218 @@
+package winflex.util;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 对数分桶直方图(HdrHistogram风格), 用于记录延迟分布, 相对误差不超过1/64
+ * <p>
+ * 取值范围为[0, {@link #MAX_VALUE}], 超出范围的值被截断到边界. 非线程安全, 多线程记录请使用{@link Recorder}
+ *
+ * @author winflex
+ */
+public class Histogram implements Serializable {
+
+    private static final long serialVersionUID = 2807312418497453105L;
+
+    static final int SUB_BUCKET_BITS = 7;
+    static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    static final int SUB_BUCKET_HALF_COUNT = SUB_BUCKET_COUNT >> 1;
+    static final int SUB_BUCKET_HALF_BITS = SUB_BUCKET_BITS - 1;
+    static final int MAX_VALUE_BITS = 40;
+
+    /**
+     * 可记录的最大值, 以纳秒计约18分钟
+     */
+    public static final long MAX_VALUE = (1L << MAX_VALUE_BITS) - 1;
+
+    static final int LENGTH = SUB_BUCKET_COUNT + (MAX_VALUE_BITS - SUB_BUCKET_BITS) * SUB_BUCKET_HALF_COUNT;
+
+    final long[] counts = new long[LENGTH];
+    long totalCount;
+
+    public void recordValue(long value) {
+        counts[indexOf(value)]++;
+        totalCount++;
+    }
+
+    public void recordValue(long value, long count) {
+        counts[indexOf(value)] += count;
+        totalCount += count;
+    }
+
+    public long getTotalCount() {
+        return totalCount;
+    }
+
+    /**
+     * @param percentile 百分位, 取值[0, 100]
+     */
+    public long getValueAtPercentile(double percentile) {
+        if (totalCount == 0) {
+            return 0;
+        }
+        final double p = Math.min(Math.max(percentile, 0), 100);
+        final long countAtPercentile = Math.max(1, (long) Math.ceil(p / 100 * totalCount));
+        long seen = 0;
+        for (int i = 0; i < LENGTH; i++) {
+            seen += counts[i];
+            if (seen >= countAtPercentile) {
+                return highestEquivalentValue(i);
+            }
+        }
+        return 0;
+    }
+
+    public long getMin() {
+        for (int i = 0; i < LENGTH; i++) {
+            if (counts[i] != 0) {
+                return lowestEquivalentValue(i);
+            }
+        }
+        return 0;
+    }
+
+    public long getMax() {
+        for (int i = LENGTH - 1; i >= 0; i--) {
+            if (counts[i] != 0) {
+                return highestEquivalentValue(i);
+            }
+        }
+        return 0;
+    }
+
+    public double getMean() {
+        if (totalCount == 0) {
+            return 0;
+        }
+        double total = 0;
+        for (int i = 0; i < LENGTH; i++) {
+            if (counts[i] != 0) {
+                long low = lowestEquivalentValue(i);
+                total += (double) counts[i] * (low + ((highestEquivalentValue(i) - low) >> 1));
+            }
+        }
+        return total / totalCount;
+    }
+
+    public void add(Histogram other) {
+        final long[] counts = this.counts, otherCounts = other.counts;
+        for (int i = 0; i < LENGTH; i++) {
+            counts[i] += otherCounts[i];
+        }
+        totalCount += other.totalCount;
+    }
+
+    /**
+     * 减去other中的计数, other必须是当前直方图的一个早期快照
+     */
+    public void subtract(Histogram other) {
+        final long[] counts = this.counts, otherCounts = other.counts;
+        for (int i = 0; i < LENGTH; i++) {
+            counts[i] -= otherCounts[i];
+        }
+        totalCount -= other.totalCount;
+    }
+
+    public void set(Histogram other) {
+        System.arraycopy(other.counts, 0, counts, 0, LENGTH);
+        totalCount = other.totalCount;
+    }
+
+    public Histogram copy() {
+        Histogram copy = new Histogram();
+        copy.set(this);
+        return copy;
+    }
+
+    public void reset() {
+        Arrays.fill(counts, 0);
+        totalCount = 0;
+    }
+
+    static int indexOf(long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return value < 0 ? 0 : (int) value;
+        }
+        if (value > MAX_VALUE) {
+            value = MAX_VALUE;
+        }
+        // value位于[2^(bucket + 6), 2^(bucket + 7)), 每个bucket只使用高半部分的子桶
+        final int bucket = 64 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        final int sub = (int) (value >>> bucket);
+        return SUB_BUCKET_COUNT + ((bucket - 1) << SUB_BUCKET_HALF_BITS) + (sub - SUB_BUCKET_HALF_COUNT);
+    }
+
+    static long lowestEquivalentValue(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        final int offset = index - SUB_BUCKET_COUNT;
+        final int bucket = (offset >> SUB_BUCKET_HALF_BITS) + 1;
+        final long sub = (offset & (SUB_BUCKET_HALF_COUNT - 1)) + SUB_BUCKET_HALF_COUNT;
+        return sub << bucket;
+    }
+
+    static long highestEquivalentValue(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        final int offset = index - SUB_BUCKET_COUNT;
+        final int bucket = (offset >> SUB_BUCKET_HALF_BITS) + 1;
+        final long sub = (offset & (SUB_BUCKET_HALF_COUNT - 1)) + SUB_BUCKET_HALF_COUNT;
+        return ((sub + 1) << bucket) - 1;
+    }
+
+    /**
+     * 单写者直方图记录器, 由一个线程记录, 其他线程可随时通过{@link #addTo(Histogram)}读取累计值
+     * <p>
+     * 记录时不加锁也不分配对象, 只使用有序写(lazySet)发布计数
+     */
+    public static class Recorder {
+
+        final AtomicLongArray counts = new AtomicLongArray(LENGTH);
+
+        /**
+         * 只允许一个线程调用
+         */
+        public void recordValue(long value) {
+            final int index = indexOf(value);
+            counts.lazySet(index, counts.get(index) + 1);
+        }
+
+        /**
+         * 把当前累计值加到h中
+         */
+        public void addTo(Histogram h) {
+            final long[] target = h.counts;
+            long total = 0;
+            for (int i = 0; i < LENGTH; i++) {
+                long c = counts.get(i);
+                target[i] += c;
+                total += c;
+            }
+            h.totalCount += total;
+        }
+    }
+
+    /**
+     * 多写者直方图记录器, 允许任意线程并发记录
+     */
+    public static final class ConcurrentRecorder extends Recorder {
+
+        @Override
+        public void recordValue(long value) {
+            counts.incrementAndGet(indexOf(value));
+        }
+
+        /**
+         * 只尝试一次, 与其他线程竞争失败时返回false且不记录
+         */
+        public boolean tryRecordValue(long value) {
+            final int index = indexOf(value);
+            final long c = counts.get(index);
+            return counts.compareAndSet(index, c, c + 1);
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package winflex.util;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+
+import winflex.util.LoadCoordinator.Plan;
+import winflex.util.LoadRunner.LoadRunnberBuilder;
+
+/**
+ * 分布式压测的agent, 连接{@link LoadCoordinator}, 按下发的负载运行本地事务, 每个汇报周期把计数与直方图回传给协调者
+ *
+ * @see LoadCoordinator
+ * @author winflex
+ */
+public final class LoadAgent {
+
+    /**
+     * 连接协调者并运行, 直至压测结束. builder只需指定事务与线程工厂等本地配置, 负载相关配置由协调者下发
+     *
+     * @return 本agent的运行结果
+     */
+    public static LoadRunner.Result run(String host, int port, LoadRunnberBuilder builder) throws IOException,
+            InterruptedException {
+        try (Socket socket = new Socket(host, port)) {
+            socket.setTcpNoDelay(true);
+            // 只按约定的格式解码并检查, 不反序列化对方发来的对象
+            final Plan plan = Plan.readFrom(new DataInputStream(socket.getInputStream()));
+            plan.applyTo(builder.config);
+            final LoadRunner runner = builder.reportSink(ReportSinks.histogramLog(socket.getOutputStream())).build();
+
+            // 先告诉协调者每个周期有几条记录: 汇总一条, 多事务时另加每个事务一条
+            final int transactions = runner.config.transactions.size();
+            final DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            out.writeInt(transactions > 1 ? transactions + 1 : 1);
+            out.flush();
+
+            final long delay = plan.startAtMillis - System.currentTimeMillis();
+            if (delay > 0) {
+                Thread.sleep(delay);
+            }
+            runner.start().join();
+            return runner.result();
+        }
+    }
+
+    private LoadAgent() {
+    }
+}
@@ -0,0 +1,490 @@
+package winflex.util;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import winflex.util.LoadRunner.Config;
+import winflex.util.LoadRunner.LoadRunnberBuilder;
+import winflex.util.LoadRunner.Phase;
+import winflex.util.LoadRunner.Report;
+import winflex.util.ReportSinks.HistogramLogReader;
+
+/**
+ * 分布式压测协调者. 等待指定数量的{@link LoadAgent}连接后, 把负载平均分给各agent, 约定统一的开始时间,
+ * 再逐个周期合并各agent回传的计数与直方图. 直方图按桶精确合并, 合并后的百分位与单进程压测一致
+ *
+ * <pre>
+ * // 协调者进程, plan只描述负载, 不需要指定事务
+ * Report total = LoadCoordinator.listen(9999, 3)
+ * .plan(LoadRunner.builder().threads(300).millis(60000).warmup(10000))
+ * .reportSink(ReportSinks.csv(Paths.get("result.csv")))
+ * .run();
+ *
+ * // 每个agent进程
+ * LoadAgent.run("127.0.0.1", 9999, LoadRunner.builder().action(() -> action()));
+ * </pre>
+ *
+ * @author winflex
+ */
+public final class LoadCoordinator {
+
+    /**
+     * 协调者在port上等待agents个agent连接
+     */
+    public static LoadCoordinator listen(int port, int agents) {
+        return new LoadCoordinator(port, agents);
+    }
+
+    final int port;
+    final int agents;
+    Config plan;
+    long startDelayMillis = 1000;
+    OutputStream reportOutputStream = System.out;
+    final List<ReportSink> sinks = new ArrayList<>();
+
+    private LoadCoordinator(int port, int agents) {
+        if (agents <= 0) {
+            throw new IllegalArgumentException("agents must be positive");
+        }
+        this.port = port;
+        this.agents = agents;
+    }
+
+    /**
+     * 负载配置, 使用其中的线程数, 到达率, 负载曲线, 运行时间, 预热/冷却时间, 汇报间隔, 思考时间, 节拍与每个worker的迭代次数,
+     * 其中线程数与负载按agent数平分. 不支持饱和点搜索与日志回放
+     */
+    public LoadCoordinator plan(LoadRunnberBuilder plan) {
+        this.plan = plan.config;
+        return this;
+    }
+
+    /**
+     * 所有agent连接后再等待millis毫秒统一开始, 默认1000
+     */
+    public LoadCoordinator startDelay(long millis) {
+        this.startDelayMillis = millis;
+        return this;
+    }
+
+    /**
+     * 指定合并结果的输出流，默认System.out
+     */
+    public LoadCoordinator reportTo(OutputStream out) {
+        this.reportOutputStream = Objects.requireNonNull(out, "out");
+        return this;
+    }
+
+    /**
+     * 添加合并结果的输出, 运行结束时关闭
+     */
+    public LoadCoordinator reportSink(ReportSink sink) {
+        sinks.add(Objects.requireNonNull(sink, "sink"));
+        return this;
+    }
+
+    /**
+     * 等待agent连接, 运行直至所有agent结束
+     *
+     * @return 合并后的最后一个周期
+     */
+    public Report run() throws IOException, InterruptedException {
+        if (plan == null) {
+            throw new IllegalStateException("plan is required");
+        }
+        if (plan.search != null) {
+            throw new IllegalArgumentException("search is not supported by coordinator");
+        }
+        if (plan.trace != null) {
+            throw new IllegalArgumentException("replay is not supported by coordinator");
+        }
+        final Plan[] plans = Plan.split(plan, agents);
+        for (Plan p : plans) {
+            p.validate();
+        }
+        final PrintStream out = new PrintStream(reportOutputStream);
+        final List<Socket> sockets = new ArrayList<>(agents);
+        try {
+            try (ServerSocket server = new ServerSocket()) {
+                server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+                while (sockets.size() < agents) {
+                    final Socket socket = server.accept();
+                    socket.setTcpNoDelay(true);
+                    sockets.add(socket);
+                    out.printf("[%s] agent %d connected: %s\n", LoadRunner.format.format(new Date()),
+                            sockets.size(), socket.getRemoteSocketAddress());
+                }
+            }
+
+            final long startAtMillis = System.currentTimeMillis() + startDelayMillis;
+            final List<BlockingQueue<Object>> queues = new ArrayList<>(agents);
+            for (int i = 0; i < agents; i++) {
+                final Plan p = plans[i];
+                p.startAtMillis = startAtMillis;
+                final Socket socket = sockets.get(i);
+                final DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                p.writeTo(dos);
+                dos.flush();
+
+                final BlockingQueue<Object> queue = new LinkedBlockingQueue<>();
+                queues.add(queue);
+                final Thread reader = new Thread(() -> read(socket, queue), "LoadCoordinator-Reader-" + p.index);
+                reader.setDaemon(true);
+                reader.start();
+            }
+
+            return merge(queues, out);
+        } finally {
+            for (Socket socket : sockets) {
+                socket.close();
+            }
+            for (ReportSink sink : sinks) {
+                sink.close();
+            }
+            out.flush();
+        }
+    }
+
+    // 读取一个agent回传的直方图日志, 每个周期的记录合为一组放入队列, 结束时放入END
+    private static void read(Socket socket, BlockingQueue<Object> queue) {
+        try {
+            final DataInputStream in = new DataInputStream(socket.getInputStream());
+            final int recordsPerTick = in.readInt();
+            final HistogramLogReader reader = new HistogramLogReader(in);
+            while (true) {
+                final List<Report> tick = new ArrayList<>(recordsPerTick);
+                Report r;
+                while (tick.size() < recordsPerTick && (r = reader.next()) != null) {
+                    tick.add(r);
+                }
+                if (tick.size() < recordsPerTick) {
+                    break;
+                }
+                queue.add(tick);
+            }
+        } catch (Throwable e) {
+            queue.add(e);
+        }
+        queue.add(END);
+    }
+
+    static final Object END = new Object();
+
+    // 按周期合并所有agent的结果, 已结束的agent不再参与
+    private Report merge(List<BlockingQueue<Object>> queues, PrintStream out) throws IOException,
+            InterruptedException {
+        final boolean phased = plan.warmupMillis > 0 || plan.cooldownMillis > 0;
+        final boolean open = plan.rate > 0 || plan.rateProfile != null;
+        final Merger merger = new Merger(queues.size());
+        final boolean[] ended = new boolean[queues.size()];
+        Report last = null;
+        while (true) {
+            final List<List<Report>> ticks = new ArrayList<>(queues.size());
+            final List<Integer> from = new ArrayList<>(queues.size());
+            for (int i = 0; i < queues.size(); i++) {
+                if (ended[i]) {
+                    continue;
+                }
+                final Object o = queues.get(i).take();
+                if (o instanceof Throwable) {
+                    ((Throwable) o).printStackTrace(out);
+                    queues.get(i).take(); // END
+                    ended[i] = true;
+                } else if (o == END) {
+                    ended[i] = true;
+                } else {
+                    @SuppressWarnings("unchecked")
+                    final List<Report> tick = (List<Report>) o;
+                    ticks.add(tick);
+                    from.add(i);
+                }
+            }
+            if (ticks.isEmpty()) {
+                break;
+            }
+            last = merger.merge(ticks, from);
+            LoadRunner.Reporter.printInterval(out, last, phased, open);
+            for (ReportSink sink : sinks) {
+                sink.write(last);
+            }
+        }
+        if (last != null) {
+            LoadRunner.Reporter.printSummary(out, last, phased, open);
+        }
+        return last;
+    }
+
+    /**
+     * 累加合并后的各事务累计结果
+     */
+    static final class Merger {
+
+        final Map<String, Totals> totals = new LinkedHashMap<>();
+        final long[] late;
+        final long[] dropped;
+        long measuredNanos;
+
+        Merger(int agents) {
+            this.late = new long[agents];
+            this.dropped = new long[agents];
+        }
+
+        Report merge(List<List<Report>> ticks, List<Integer> from) {
+            // 各agent的迟发/丢弃数是累计值, 保留已结束agent的最后取值
+            for (int i = 0; i < ticks.size(); i++) {
+                final Report total = ticks.get(i).get(0);
+                late[from.get(i)] = total.totalLate;
+                dropped[from.get(i)] = total.totalDropped;
+            }
+            long totalLate = 0, totalDropped = 0;
+            for (int i = 0; i < late.length; i++) {
+                totalLate += late[i];
+                totalDropped += dropped[i];
+            }
+
+            final Report first = ticks.get(0).get(0);
+            long timestamp = 0, intervalNanos = 0;
+            for (List<Report> tick : ticks) {
+                timestamp = Math.max(timestamp, tick.get(0).timestamp);
+                intervalNanos = Math.max(intervalNanos, tick.get(0).intervalNanos);
+            }
+            if (first.phase == Phase.STEADY) {
+                measuredNanos += intervalNanos;
+            }
+
+            final List<Report> merged = new ArrayList<>(ticks.get(0).size());
+            for (int k = 0; k < ticks.get(0).size(); k++) {
+                final String name = ticks.get(0).get(k).name;
+                final Histogram h = new Histogram();
+                long success = 0, failure = 0, error = 0;
+                for (List<Report> tick : ticks) {
+                    for (Report r : tick) {
+                        if (r.name.equals(name)) {
+                            h.add(r.histogram);
+                            success += r.success;
+                            failure += r.failure;
+                            error += r.error;
+                        }
+                    }
+                }
+                final Totals t = totals.computeIfAbsent(name, n -> new Totals());
+                t.cumulative.add(h);
+                t.success += success;
+                t.failure += failure;
+                t.error += error;
+                if (first.phase == Phase.STEADY) {
+                    t.measured.add(h);
+                    t.measuredSuccess += success;
+                    t.measuredFailure += failure;
+                    t.measuredError += error;
+                }
+                final Report report = new Report(name, first.phase, timestamp, intervalNanos, success, failure,
+                        error, t.success, t.failure, t.error, totalLate, totalDropped, h, t.cumulative);
+                report.measured(t.measured, t.measuredSuccess, t.measuredFailure, t.measuredError, measuredNanos);
+                merged.add(report);
+            }
+
+            final Report report = merged.get(0);
+            if (merged.size() > 1) {
+                report.transactions = Collections.unmodifiableList(merged.subList(1, merged.size()));
+            }
+            return report;
+        }
+
+        static final class Totals {
+            final Histogram cumulative = new Histogram();
+            final Histogram measured = new Histogram();
+            long success, failure, error;
+            long measuredSuccess, measuredFailure, measuredError;
+        }
+    }
+
+    /**
+     * 下发给单个agent的负载配置
+     * <p>
+     * 按字段显式编码, 不使用Java序列化, agent不会反序列化连接方发来的任意对象
+     */
+    static final class Plan {
+
+        static final int MAGIC = 0x4C52504C; // "LRPL"
+        static final int VERSION = 1;
+
+        int threads;
+        int duration;
+        int threadsEachDuration;
+        int maxInFlight;
+        long millis;
+        long warmupMillis;
+        long cooldownMillis;
+        boolean stopWhenError;
+        long reportInterval;
+        int rate;
+        int limit;
+        long maxLagMillis;
+        LoadProfile profile;
+        LoadProfile rateProfile;
+        ThinkTime thinkTime;
+        long pacingMillis;
+        long iterations;
+        long startAtMillis;
+        int index;
+
+        static Plan[] split(Config c, int agents) {
+            if (c.rate > 0 && c.rate < agents) {
+                throw new IllegalArgumentException("rate [" + c.rate + "] is less than agents [" + agents + "]");
+            }
+            if (c.limit > 0 && c.limit < agents) {
+                throw new IllegalArgumentException("limit [" + c.limit + "] is less than agents [" + agents + "]");
+            }
+            if (c.threads > 0 && c.threads < agents) {
+                throw new IllegalArgumentException("threads [" + c.threads + "] is less than agents [" + agents
+                        + "]");
+            }
+            final Plan[] plans = new Plan[agents];
+            for (int i = 0; i < agents; i++) {
+                final Plan p = new Plan();
+                p.index = i;
+                p.threads = share(c.threads, agents, i);
+                p.duration = c.duration;
+                p.threadsEachDuration = c.threadsEachDuration > 0 ? Math.max(1, c.threadsEachDuration / agents) : 0;
+                p.maxInFlight = c.maxInFlight > 0 ? Math.max(1, share(c.maxInFlight, agents, i)) : 0;
+                p.millis = c.millis;
+                p.warmupMillis = c.warmupMillis;
+                p.cooldownMillis = c.cooldownMillis;
+                p.stopWhenError = c.stopWhenError;
+                p.reportInterval = c.reportInterval;
+                p.rate = share(c.rate, agents, i);
+                p.limit = share(c.limit, agents, i);
+                p.maxLagMillis = c.maxLagMillis;
+                p.profile = c.profile != null ? c.profile.scale(1d / agents) : null;
+                p.rateProfile = c.rateProfile != null ? c.rateProfile.scale(1d / agents) : null;
+                p.thinkTime = c.thinkTime;
+                p.pacingMillis = c.pacingMillis;
+                p.iterations = c.iterations;
+                plans[i] = p;
+            }
+            return plans;
+        }
+
+        // 把total平分为n份, 余数分给前几份
+        private static int share(int total, int n, int i) {
+            return total / n + (i < total % n ? 1 : 0);
+        }
+
+        void writeTo(DataOutput out) throws IOException {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(index);
+            out.writeLong(startAtMillis);
+            out.writeInt(threads);
+            out.writeInt(duration);
+            out.writeInt(threadsEachDuration);
+            out.writeInt(maxInFlight);
+            out.writeLong(millis);
+            out.writeLong(warmupMillis);
+            out.writeLong(cooldownMillis);
+            out.writeBoolean(stopWhenError);
+            out.writeLong(reportInterval);
+            out.writeInt(rate);
+            out.writeInt(limit);
+            out.writeLong(maxLagMillis);
+            LoadProfile.write(profile, out);
+            LoadProfile.write(rateProfile, out);
+            ThinkTime.write(thinkTime, out);
+            out.writeLong(pacingMillis);
+            out.writeLong(iterations);
+        }
+
+        /**
+         * 读取并检查协调者下发的配置, 不合法时抛出IOException
+         */
+        static Plan readFrom(DataInput in) throws IOException {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("not a coordinator");
+            }
+            final int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException("incompatible coordinator, plan version: " + version);
+            }
+            final Plan p = new Plan();
+            try {
+                p.index = in.readInt();
+                p.startAtMillis = in.readLong();
+                p.threads = in.readInt();
+                p.duration = in.readInt();
+                p.threadsEachDuration = in.readInt();
+                p.maxInFlight = in.readInt();
+                p.millis = in.readLong();
+                p.warmupMillis = in.readLong();
+                p.cooldownMillis = in.readLong();
+                p.stopWhenError = in.readBoolean();
+                p.reportInterval = in.readLong();
+                p.rate = in.readInt();
+                p.limit = in.readInt();
+                p.maxLagMillis = in.readLong();
+                p.profile = LoadProfile.read(in);
+                p.rateProfile = LoadProfile.read(in);
+                p.thinkTime = ThinkTime.read(in);
+                p.pacingMillis = in.readLong();
+                p.iterations = in.readLong();
+                p.validate();
+            } catch (IllegalArgumentException | IllegalStateException e) {
+                throw new IOException("invalid plan: " + e.getMessage(), e);
+            }
+            return p;
+        }
+
+        /**
+         * 按agent运行前的规则检查, 协调者在下发前也检查一次, 配置错误时不必等到agent启动才失败
+         */
+        void validate() {
+            if (index < 0 || threads < 0 || duration < 0 || threadsEachDuration < 0 || maxInFlight < 0
+                    || maxLagMillis < 0) {
+                throw new IllegalArgumentException("negative value in plan");
+            }
+            final Config c = new Config();
+            applyTo(c);
+            c.action = () -> true;
+            c.validate();
+        }
+
+        void applyTo(Config c) {
+            c.threads = threads;
+            c.duration = duration;
+            c.threadsEachDuration = threadsEachDuration;
+            c.maxInFlight = maxInFlight;
+            c.millis = millis;
+            c.warmupMillis = warmupMillis;
+            c.cooldownMillis = cooldownMillis;
+            c.stopWhenError = stopWhenError;
+            c.reportInterval = reportInterval;
+            c.rate = rate;
+            c.limit = limit;
+            c.maxLagMillis = maxLagMillis;
+            c.profile = profile;
+            c.rateProfile = rateProfile;
+            c.thinkTime = thinkTime;
+            c.pacingMillis = pacingMillis;
+            c.iterations = iterations;
+        }
+    }
+}
@@ -0,0 +1,426 @@
+package winflex.util;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 负载曲线, 描述并发数或目标到达率随时间的变化
+ *
+ * <pre>
+ * LoadProfile profile = LoadProfile.linear(0, 200, 60000) // 60秒内从0线性爬升到200
+ * .then(LoadProfile.constant(200, 600000)) // 保持10分钟
+ * .then(LoadProfile.spike(200, 1000, 60000, 5000, 120000)) // 第60秒突增到1000, 持续5秒
+ * .then(LoadProfile.linear(200, 0, 30000)); // 30秒内降到0
+ * </pre>
+ *
+ * @see LoadRunner.LoadRunnberBuilder#profile(LoadProfile)
+ * @see LoadRunner.LoadRunnberBuilder#rateProfile(LoadProfile)
+ * @author winflex
+ */
+public abstract class LoadProfile implements Serializable {
+
+    private static final long serialVersionUID = -3725047851244434178L;
+
+    /**
+     * 恒定负载, 可用于稳定性(soak)测试
+     */
+    public static LoadProfile constant(double value, long millis) {
+        return new Linear(value, value, millis);
+    }
+
+    /**
+     * millis毫秒内从from线性变化到to, from > to时即为逐步降压
+     */
+    public static LoadProfile linear(double from, double to, long millis) {
+        return new Linear(from, to, millis);
+    }
+
+    /**
+     * 阶梯负载, 从from开始每stepMillis毫秒增加step, 共steps级
+     */
+    public static LoadProfile steps(double from, double step, int steps, long stepMillis) {
+        return new Steps(from, step, steps, stepMillis);
+    }
+
+    /**
+     * 尖峰负载, 总时长totalMillis, 在第spikeAtMillis毫秒时由base突增到peak, 持续spikeMillis毫秒后回落
+     */
+    public static LoadProfile spike(double base, double peak, long spikeAtMillis, long spikeMillis, long totalMillis) {
+        return new Spike(base, peak, spikeAtMillis, spikeMillis, totalMillis);
+    }
+
+    /**
+     * @param elapsedNanos 距离开始的纳秒数
+     * @return elapsedNanos时刻的负载, 超出时长时返回最后时刻的负载
+     */
+    public abstract double valueAt(long elapsedNanos);
+
+    public abstract long durationNanos();
+
+    public abstract double maxValue();
+
+    public final long durationMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(durationNanos());
+    }
+
+    /**
+     * 当前曲线结束后接着执行next
+     */
+    public LoadProfile then(LoadProfile next) {
+        return new Sequence(this, next);
+    }
+
+    /**
+     * 负载按factor等比缩放, 时长不变
+     */
+    public LoadProfile scale(double factor) {
+        return new Scaled(this, factor);
+    }
+
+    // 分布式压测时负载曲线的编码, 只接受以下已知类型, 不使用Java序列化
+    static final byte NONE = 0, LINEAR = 1, STEPS = 2, SPIKE = 3, SCALED = 4, SEQUENCE = 5;
+    static final int MAX_ENCODED_DEPTH = 8;
+    static final int MAX_ENCODED_SEGMENTS = 1024;
+
+    static void write(LoadProfile p, DataOutput out) throws IOException {
+        if (p == null) {
+            out.writeByte(NONE);
+        } else if (p instanceof Linear) {
+            final Linear l = (Linear) p;
+            out.writeByte(LINEAR);
+            out.writeDouble(l.from);
+            out.writeDouble(l.to);
+            out.writeLong(TimeUnit.NANOSECONDS.toMillis(l.durationNanos));
+        } else if (p instanceof Steps) {
+            final Steps s = (Steps) p;
+            out.writeByte(STEPS);
+            out.writeDouble(s.from);
+            out.writeDouble(s.step);
+            out.writeInt(s.steps);
+            out.writeLong(TimeUnit.NANOSECONDS.toMillis(s.stepNanos));
+        } else if (p instanceof Spike) {
+            final Spike s = (Spike) p;
+            out.writeByte(SPIKE);
+            out.writeDouble(s.base);
+            out.writeDouble(s.peak);
+            out.writeLong(TimeUnit.NANOSECONDS.toMillis(s.spikeAtNanos));
+            out.writeLong(TimeUnit.NANOSECONDS.toMillis(s.spikeEndNanos - s.spikeAtNanos));
+            out.writeLong(TimeUnit.NANOSECONDS.toMillis(s.durationNanos));
+        } else if (p instanceof Scaled) {
+            final Scaled s = (Scaled) p;
+            out.writeByte(SCALED);
+            out.writeDouble(s.factor);
+            write(s.profile, out);
+        } else if (p instanceof Sequence) {
+            final Sequence s = (Sequence) p;
+            out.writeByte(SEQUENCE);
+            out.writeInt(s.profiles.length);
+            for (LoadProfile child : s.profiles) {
+                write(child, out);
+            }
+        } else {
+            throw new IllegalArgumentException("unsupported profile: " + p.getClass().getName());
+        }
+    }
+
+    /**
+     * 读取{@link #write(LoadProfile, DataOutput)}写出的曲线, 取值不合法时抛出{@link IllegalArgumentException}
+     */
+    static LoadProfile read(DataInput in) throws IOException {
+        return read(in, 0);
+    }
+
+    private static LoadProfile read(DataInput in, int depth) throws IOException {
+        if (depth > MAX_ENCODED_DEPTH) {
+            throw new IllegalArgumentException("profile is nested too deeply");
+        }
+        final byte type = in.readByte();
+        switch (type) {
+        case NONE:
+            return null;
+        case LINEAR:
+            return new Linear(readLoad(in), readLoad(in), in.readLong());
+        case STEPS:
+            return new Steps(readLoad(in), readFinite(in), in.readInt(), in.readLong());
+        case SPIKE:
+            return new Spike(readLoad(in), readLoad(in), in.readLong(), in.readLong(), in.readLong());
+        case SCALED: {
+            final double factor = readLoad(in);
+            return new Scaled(Objects.requireNonNull(read(in, depth + 1), "profile"), factor);
+        }
+        case SEQUENCE: {
+            final int n = in.readInt();
+            if (n < 2 || n > MAX_ENCODED_SEGMENTS) {
+                throw new IllegalArgumentException("segments: " + n);
+            }
+            LoadProfile p = Objects.requireNonNull(read(in, depth + 1), "profile");
+            for (int i = 1; i < n; i++) {
+                p = p.then(Objects.requireNonNull(read(in, depth + 1), "profile"));
+            }
+            return p;
+        }
+        default:
+            throw new IllegalArgumentException("unknown profile type: " + type);
+        }
+    }
+
+    private static double readFinite(DataInput in) throws IOException {
+        final double value = in.readDouble();
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            throw new IllegalArgumentException("load must be finite");
+        }
+        return value;
+    }
+
+    private static double readLoad(DataInput in) throws IOException {
+        final double value = readFinite(in);
+        if (value < 0) {
+            throw new IllegalArgumentException("load must not be negative");
+        }
+        return value;
+    }
+
+    static final class Linear extends LoadProfile {
+
+        private static final long serialVersionUID = 4011236395393081046L;
+
+        final double from;
+        final double to;
+        final long durationNanos;
+
+        Linear(double from, double to, long millis) {
+            if (from < 0 || to < 0) {
+                throw new IllegalArgumentException("load must not be negative");
+            }
+            if (millis <= 0) {
+                throw new IllegalArgumentException("millis must be positive");
+            }
+            this.from = from;
+            this.to = to;
+            this.durationNanos = TimeUnit.MILLISECONDS.toNanos(millis);
+        }
+
+        @Override
+        public double valueAt(long elapsedNanos) {
+            if (elapsedNanos >= durationNanos) {
+                return to;
+            }
+            return from + (to - from) * Math.max(elapsedNanos, 0) / durationNanos;
+        }
+
+        @Override
+        public long durationNanos() {
+            return durationNanos;
+        }
+
+        @Override
+        public double maxValue() {
+            return Math.max(from, to);
+        }
+    }
+
+    static final class Steps extends LoadProfile {
+
+        private static final long serialVersionUID = -1402286425093563427L;
+
+        final double from;
+        final double step;
+        final int steps;
+        final long stepNanos;
+
+        Steps(double from, double step, int steps, long stepMillis) {
+            if (steps <= 0 || stepMillis <= 0) {
+                throw new IllegalArgumentException("steps and stepMillis must be positive");
+            }
+            if (from < 0 || from + step * (steps - 1) < 0) {
+                throw new IllegalArgumentException("load must not be negative");
+            }
+            this.from = from;
+            this.step = step;
+            this.steps = steps;
+            this.stepNanos = TimeUnit.MILLISECONDS.toNanos(stepMillis);
+        }
+
+        @Override
+        public double valueAt(long elapsedNanos) {
+            long n = Math.max(elapsedNanos, 0) / stepNanos;
+            return from + step * Math.min(n, steps - 1);
+        }
+
+        @Override
+        public long durationNanos() {
+            return stepNanos * steps;
+        }
+
+        @Override
+        public double maxValue() {
+            return Math.max(from, from + step * (steps - 1));
+        }
+    }
+
+    static final class Spike extends LoadProfile {
+
+        private static final long serialVersionUID = 5923412850870398262L;
+
+        final double base;
+        final double peak;
+        final long spikeAtNanos;
+        final long spikeEndNanos;
+        final long durationNanos;
+
+        Spike(double base, double peak, long spikeAtMillis, long spikeMillis, long totalMillis) {
+            if (base < 0 || peak < 0) {
+                throw new IllegalArgumentException("load must not be negative");
+            }
+            if (spikeAtMillis < 0 || spikeMillis <= 0 || spikeAtMillis + spikeMillis > totalMillis) {
+                throw new IllegalArgumentException("spike must lie within totalMillis");
+            }
+            this.base = base;
+            this.peak = peak;
+            this.spikeAtNanos = TimeUnit.MILLISECONDS.toNanos(spikeAtMillis);
+            this.spikeEndNanos = TimeUnit.MILLISECONDS.toNanos(spikeAtMillis + spikeMillis);
+            this.durationNanos = TimeUnit.MILLISECONDS.toNanos(totalMillis);
+        }
+
+        @Override
+        public double valueAt(long elapsedNanos) {
+            return elapsedNanos >= spikeAtNanos && elapsedNanos < spikeEndNanos ? peak : base;
+        }
+
+        @Override
+        public long durationNanos() {
+            return durationNanos;
+        }
+
+        @Override
+        public double maxValue() {
+            return Math.max(base, peak);
+        }
+    }
+
+    /**
+     * 运行中可调整的负载, 供{@link SaturationSearch}使用
+     */
+    static final class Variable extends LoadProfile {
+
+        private static final long serialVersionUID = 7739412470521934405L;
+
+        final double maxValue;
+        volatile double value;
+
+        Variable(double initialValue, double maxValue) {
+            this.value = initialValue;
+            this.maxValue = maxValue;
+        }
+
+        @Override
+        public double valueAt(long elapsedNanos) {
+            return value;
+        }
+
+        @Override
+        public long durationNanos() {
+            return Long.MAX_VALUE;
+        }
+
+        @Override
+        public double maxValue() {
+            return maxValue;
+        }
+    }
+
+    static final class Scaled extends LoadProfile {
+
+        private static final long serialVersionUID = 2171904480873125870L;
+
+        final LoadProfile profile;
+        final double factor;
+
+        Scaled(LoadProfile profile, double factor) {
+            if (factor < 0) {
+                throw new IllegalArgumentException("factor must not be negative");
+            }
+            this.profile = profile;
+            this.factor = factor;
+        }
+
+        @Override
+        public double valueAt(long elapsedNanos) {
+            return profile.valueAt(elapsedNanos) * factor;
+        }
+
+        @Override
+        public long durationNanos() {
+            return profile.durationNanos();
+        }
+
+        @Override
+        public double maxValue() {
+            return profile.maxValue() * factor;
+        }
+    }
+
+    static final class Sequence extends LoadProfile {
+
+        private static final long serialVersionUID = -6409372734512190562L;
+
+        final LoadProfile[] profiles;
+        final long[] ends; // 每段曲线的结束时刻
+
+        Sequence(LoadProfile first, LoadProfile next) {
+            List<LoadProfile> list = new ArrayList<>();
+            flatten(first, list);
+            flatten(next, list);
+            this.profiles = list.toArray(new LoadProfile[list.size()]);
+            this.ends = new long[profiles.length];
+            long end = 0;
+            for (int i = 0; i < profiles.length; i++) {
+                end += profiles[i].durationNanos();
+                ends[i] = end;
+            }
+        }
+
+        private static void flatten(LoadProfile p, List<LoadProfile> list) {
+            if (p instanceof Sequence) {
+                for (LoadProfile child : ((Sequence) p).profiles) {
+                    list.add(child);
+                }
+            } else {
+                list.add(p);
+            }
+        }
+
+        @Override
+        public double valueAt(long elapsedNanos) {
+            long begin = 0;
+            for (int i = 0; i < profiles.length; i++) {
+                if (elapsedNanos < ends[i]) {
+                    return profiles[i].valueAt(elapsedNanos - begin);
+                }
+                begin = ends[i];
+            }
+            LoadProfile last = profiles[profiles.length - 1];
+            return last.valueAt(last.durationNanos());
+        }
+
+        @Override
+        public long durationNanos() {
+            return ends[ends.length - 1];
+        }
+
+        @Override
+        public double maxValue() {
+            double max = 0;
+            for (LoadProfile p : profiles) {
+                max = Math.max(max, p.maxValue());
+            }
+            return max;
+        }
+    }
+}
@@ -1,15 +1,39 @@
 package winflex.util;
 
+import java.io.IOException;
 import java.io.OutputStream;
 import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import winflex.util.concurrent.IFuture;
+import winflex.util.concurrent.IFutureListener;
 
 /**
  * 压测小工具
@@ -29,36 +53,114 @@ import java.util.concurrent.atomic.LongAdder;
  * lr.join();
  * </pre>
  *
+ * 默认为闭环模式, 每个线程上一个事务完成后立即开始下一个. 通过{@link LoadRunnberBuilder#rate(int)}
+ * 可切换为开环模式, 事务按固定到达率调度, 延迟从计划开始时间算起, 以避免协调遗漏(coordinated omission)
+ * <p>
+ * 异步客户端可使用{@link LoadRunnberBuilder#asyncAction(Callable)}, 少量线程即可维持
+ * {@link LoadRunnberBuilder#maxInFlight(int)}个在途事务
+ * <p>
+ * 通过{@link LoadRunnberBuilder#action(String, int, Callable)}可以配置按权重混合的多个具名事务, 分别统计
+ * <p>
+ * 通过{@link LoadRunnberBuilder#warmup(long)}和{@link LoadRunnberBuilder#cooldown(long)}可以把开头与结尾的结果排除在最终统计之外,
+ * 通过{@link LoadRunnberBuilder#sla(Sla)}可以设置通过条件, 运行结束后由{@link #result()}返回是否通过
+ * <p>
+ * 压测数据可以通过{@link LoadRunnberBuilder#action(Feeder, Feeder.Action)}从内存映射的文件中读取,
+ * 也可以用{@link LoadRunnberBuilder#replay(Trace, Feeder.Action)}按记录的时间回放请求日志
+ * <p>
+ * 闭环模式下可以用{@link LoadRunnberBuilder#thinkTime(ThinkTime)}, {@link LoadRunnberBuilder#pacing(long)}和
+ * {@link LoadRunnberBuilder#iterations(long)}模拟用户会话
+ * <p>
+ * 并发数与到达率也可以随时间变化, 见{@link LoadRunnberBuilder#profile(LoadProfile)}和
+ * {@link LoadRunnberBuilder#rateProfile(LoadProfile)}
+ *
  * @author winflex
  */
 public class LoadRunner {
 
     static final SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
 
+    // 开环模式下实际开始时间晚于计划时间超过该值即视为迟发
+    static final long LATE_THRESHOLD_NANOS = 1000000;
+
+    static final long MIN_REPORT_INTERVAL = 10;
+
+    // 剩余等待时间小于该值时自旋而不是park, park的唤醒精度通常在几十微秒
+    static final long SPIN_THRESHOLD_NANOS = 50000;
+
     public static LoadRunnberBuilder builder() {
         return new LoadRunnberBuilder();
     }
 
-    private final Config config;
+    final Config config;
     private final LinkedList<Worker> workers = new LinkedList<>();
     private final Reporter reporter;
 
     private final StartSemaphore startSemaphore;
+    private final Schedule schedule;
+    private final Semaphore inFlight;
+    private final RateLimiter limiter;
+    private final TransactionMix mix;
+    private final ProfileDriver driver;
+    private final SaturationSearch.Searcher searcher;
+    private final Sla.Checker checker;
+    private final ReportHistory history;
+    private final AtomicInteger unfinishedWorkers = new AtomicInteger();
 
     private volatile Status status = Status.NOT_STARTED;
+    private volatile Result result;
 
     public LoadRunner(Config config) {
         this.config = config;
         this.reporter = new Reporter(config);
-        if (config.duration > 0 && config.threadsEachDuration > 0) {
+        if (config.profile != null || config.rateProfile != null) {
+            startSemaphore = new ImmediateStartSemaphore();
+        } else if (config.duration > 0 && config.threadsEachDuration > 0) {
             startSemaphore = new GraduallyStartSemaphore(config.duration, config.threadsEachDuration);
         } else {
             startSemaphore = new TogetherStartSemaphore();
         }
+        if (config.trace != null) {
+            this.schedule = new Schedule(config.trace);
+        } else if (config.rateProfile != null) {
+            this.schedule = new Schedule(config.rateProfile);
+        } else {
+            this.schedule = config.rate > 0 ? new Schedule(config.rate) : null;
+        }
+        this.limiter = config.limit > 0 ? new RateLimiter(config.limit) : null;
+        this.inFlight = config.hasAsyncTransaction() ? new Semaphore(config.maxInFlight) : null;
+        this.mix = new TransactionMix(config.transactions);
+        this.driver = config.profile != null ? new ProfileDriver(config.profile, config.threads) : null;
+        reporter.driver = driver;
+        for (ReportSink sink : config.sinks) {
+            reporter.listeners.add(new SinkListener(sink));
+        }
+        if (config.search != null) {
+            this.searcher = new SaturationSearch.Searcher(config.search, this, reporter);
+            reporter.listeners.add(searcher);
+        } else {
+            this.searcher = null;
+        }
+        if (!config.slas.isEmpty()) {
+            this.checker = new Sla.Checker(config.slas, this, reporter);
+            reporter.listeners.add(checker);
+        } else {
+            this.checker = null;
+        }
+        if (config.history > 0) {
+            this.history = new ReportHistory(config.history);
+            reporter.listeners.add(history);
+        } else {
+            this.history = null;
+        }
 
         for (int i = 0; i < config.threads; i++) {
-            workers.add(new Worker(config, startSemaphore, reporter));
+            Worker worker = new Worker(this, i);
+            workers.add(worker);
+            if (driver != null) {
+                driver.workers[i] = worker;
+            }
         }
+        unfinishedWorkers.set(config.threads);
     }
 
     public synchronized LoadRunner start() {
@@ -69,15 +171,21 @@ public class LoadRunner {
             throw new IllegalStateException("status: " + status);
         }
 
+        reporter.startNanos = System.nanoTime();
+        if (driver != null) {
+            driver.start();
+        }
         workers.forEach(w -> w.start());
         startSemaphore.start();
         reporter.start();
 
         // schedule stop task
-        new Thread(() -> {
+        Thread stopper = new Thread(() -> {
             sleepQuietly(config.millis);
             LoadRunner.this.stop();
-        }).start();
+        });
+        stopper.setDaemon(true);
+        stopper.start();
 
         status = Status.STARTED;
 
@@ -92,18 +200,32 @@ public class LoadRunner {
             throw new IllegalStateException("status: " + status);
         }
 
+        if (driver != null) {
+            driver.stop();
+        }
         reporter.stop();
         workers.forEach(w -> w.stop());
         return this;
     }
 
+    // worker完成了指定的迭代次数, 全部完成时提前结束运行
+    void workerFinished() {
+        if (unfinishedWorkers.decrementAndGet() == 0) {
+            stop();
+        }
+    }
+
     public LoadRunner incrementThreads(int threads) {
         if (status != Status.STARTED) {
             throw new IllegalStateException("status: " + status);
         }
+        if (driver != null) {
+            throw new IllegalStateException("concurrency is controlled by profile");
+        }
         for (int i = 0; i < threads; i++) {
-            Worker worker = new Worker(config, startSemaphore, reporter);
+            Worker worker = new Worker(this, workers.size());
             workers.add(worker);
+            unfinishedWorkers.incrementAndGet();
             worker.start();
         }
         return this;
@@ -113,23 +235,110 @@ public class LoadRunner {
         if (status != Status.STARTED) {
             throw new IllegalStateException("status: " + status);
         }
+        if (driver != null) {
+            throw new IllegalStateException("concurrency is controlled by profile");
+        }
         if (threads > workers.size()) {
             throw new IllegalArgumentException(
                     "threads [" + threads + "] is larger than total workers[" + workers.size() + "]");
         }
 
         for (int i = 0; i < threads; i++) {
-            workers.removeFirst().stop();
+            Worker worker = workers.removeFirst();
+            worker.stop();
+            if (!worker.finished) {
+                unfinishedWorkers.decrementAndGet();
+            }
         }
         return this;
     }
 
-    public LoadRunner join() throws InterruptedException {
+    /**
+     * 饱和点搜索的结果, 未配置搜索或搜索未结束时返回null
+     *
+     * @see LoadRunnberBuilder#search(SaturationSearch)
+     */
+    public SaturationSearch.Result saturationPoint() {
+        return searcher != null ? searcher.result : null;
+    }
+
+    /**
+     * 最近若干汇报周期的快照, 未通过{@link LoadRunnberBuilder#history(int)}启用时返回null
+     *
+     * @see LoadRunnberBuilder#history(int)
+     */
+    public ReportHistory history() {
+        return history;
+    }
+
+    /**
+     * 等待运行结束
+     *
+     * @see #result()
+     */
+    public void join() throws InterruptedException {
         for (Worker w : workers) {
             w.join();
         }
         reporter.join();
-        return this;
+        if (config.trace != null) {
+            try {
+                config.trace.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        result = checker != null ? checker.result
+                : new Result(true, Collections.<String>emptyList(), reporter.finalReport);
+    }
+
+    /**
+     * 运行结果, 配置了{@link LoadRunnberBuilder#sla(Sla)}时包含是否通过. {@link #join()}返回之前为null
+     */
+    public Result result() {
+        return result;
+    }
+
+    /**
+     * 运行结果
+     */
+    public static final class Result {
+
+        final boolean passed;
+        final List<String> violations;
+        final Report report;
+
+        Result(boolean passed, List<String> violations, Report report) {
+            this.passed = passed;
+            this.violations = violations;
+            this.report = report;
+        }
+
+        /**
+         * 是否满足所有通过条件, 未配置条件时总是true
+         */
+        public boolean passed() {
+            return passed;
+        }
+
+        /**
+         * 被打破的条件及实际值
+         */
+        public List<String> violations() {
+            return violations;
+        }
+
+        /**
+         * 最后一个汇报周期, 其中measured开头的方法为稳定阶段的累计结果
+         */
+        public Report report() {
+            return report;
+        }
+
+        @Override
+        public String toString() {
+            return passed ? "passed" : "failed: " + String.join("; ", violations);
+        }
     }
 
     private static boolean sleepQuietly(long millis) {
@@ -142,253 +351,1915 @@ public class LoadRunner {
         }
     }
 
-    static final class Reporter {
-        static final NamedThreadFactory tf = new NamedThreadFactory("LoadRunner-Reporter", true);
+    /**
+     * 一个汇报周期的统计结果
+     * <p>
+     * 直方图由汇报线程复用, 只在回调期间有效, 需要保留时请调用{@link Histogram#copy()}
+     */
+    public static final class Report {
 
-        final Config config;
-        final Thread thread;
-        final LongAdder successCounter = new LongAdder();
-        final LongAdder failureCounter = new LongAdder();
-        final LongAdder errorCounter = new LongAdder();
-        long lastCount;
-        volatile boolean stopped;
+        /**
+         * 汇总所有事务的报告名称
+         */
+        public static final String TOTAL = "total";
+
+        final String name;
+        final Phase phase;
+        final long timestamp;
+        final long intervalNanos;
+        final long success;
+        final long failure;
+        final long error;
+        final long totalSuccess;
+        final long totalFailure;
+        final long totalError;
+        final long totalLate;
+        final long totalDropped;
+        final Histogram histogram;
+        final Histogram cumulativeHistogram;
+        List<Report> transactions = Collections.emptyList();
+
+        // 稳定阶段的累计结果, 不含预热与冷却
+        Histogram measuredHistogram;
+        long measuredSuccess, measuredFailure, measuredError, measuredNanos;
+
+        // 资源消耗, 开启measureResources时才有值
+        boolean resourcesMeasured;
+        long cpuNanos, allocatedBytes, gcCount, gcMillis;
+
+        // 等待限流器的时间, 配置了limit时才有值
+        boolean limited;
+        long limiterWaitNanos, totalLimiterWaitNanos;
+
+        Report(String name, Phase phase, long timestamp, long intervalNanos, long success, long failure, long error,
+                long totalSuccess, long totalFailure, long totalError, long totalLate, long totalDropped,
+                Histogram histogram, Histogram cumulativeHistogram) {
+            this.name = name;
+            this.phase = phase;
+            this.timestamp = timestamp;
+            this.intervalNanos = intervalNanos;
+            this.success = success;
+            this.failure = failure;
+            this.error = error;
+            this.totalSuccess = totalSuccess;
+            this.totalFailure = totalFailure;
+            this.totalError = totalError;
+            this.totalLate = totalLate;
+            this.totalDropped = totalDropped;
+            this.histogram = histogram;
+            this.cumulativeHistogram = cumulativeHistogram;
+        }
 
-        Reporter(Config config) {
-            this.config = config;
-            this.thread = tf.newThread(() -> run());
+        /**
+         * 事务名称, 汇总报告为{@link #TOTAL}
+         */
+        public String name() {
+            return name;
         }
 
-        void actionDone(boolean success) {
-            if (success) {
-                successCounter.increment();
-            } else {
-                failureCounter.increment();
-            }
+        /**
+         * 本周期所处的阶段
+         */
+        public Phase phase() {
+            return phase;
         }
 
-        void actionError(Throwable e) {
-            errorCounter.increment();
+        /**
+         * 配置了多个事务时, 各事务的分项报告, 否则为空
+         */
+        public List<Report> transactions() {
+            return transactions;
         }
 
-        long succeedTransactions() {
-            return successCounter.longValue();
+        /**
+         * 周期结束时间, 毫秒
+         */
+        public long timestamp() {
+            return timestamp;
         }
 
-        long failureTransactions() {
-            return failureCounter.longValue();
+        /**
+         * 实际周期长度, 纳秒
+         */
+        public long intervalNanos() {
+            return intervalNanos;
         }
 
-        private void run() {
-            final PrintStream out = new PrintStream(config.reportOutputStream);
-            final long interval = config.reportInterval;
-            final long intervalSecs = interval / 1000;
-            while (!stopped) {
-                if (sleepQuietly(interval)) {
-                    break;
-                }
+        public long success() {
+            return success;
+        }
 
-                long successCount = successCounter.sum();
-                long failureCount = failureCounter.sum();
-                long tps = (successCount - lastCount) / intervalSecs;
+        public long failure() {
+            return failure;
+        }
 
-                out.printf("[%s] tps = %10d, success = %10d, failure = %10d, error = %10d\n", format.format(new Date()),
-                        tps, successCount, failureCount, errorCounter.sum());
-                lastCount = successCount;
-            }
+        public long error() {
+            return error;
         }
 
-        final void start() {
-            thread.start();
+        public long totalSuccess() {
+            return totalSuccess;
         }
 
-        final void stop() {
-            stopped = true;
-            thread.interrupt();
+        public long totalFailure() {
+            return totalFailure;
         }
 
-        final void join() throws InterruptedException {
-            thread.join();
+        public long totalError() {
+            return totalError;
         }
-    }
 
-    static final class Worker {
+        /**
+         * 开环模式下累计迟发的事务数
+         */
+        public long totalLate() {
+            return totalLate;
+        }
 
-        final Thread thread;
-        final Config config;
-        final Reporter reporter;
+        /**
+         * 开环模式下累计丢弃的事务数
+         */
+        public long totalDropped() {
+            return totalDropped;
+        }
 
-        StartSemaphore startSemaphore;
+        /**
+         * 本周期成功事务数/秒
+         */
+        public double tps() {
+            return intervalNanos > 0 ? success * 1e9 / intervalNanos : 0;
+        }
 
-        volatile boolean stopped;
+        /**
+         * 本周期延迟分布, 纳秒
+         */
+        public Histogram histogram() {
+            return histogram;
+        }
 
-        Worker(Config config, StartSemaphore startSemaphore, Reporter reporter) {
-            this.config = config;
-            this.startSemaphore = startSemaphore;
-            this.reporter = reporter;
-            this.thread = config.threadFactory.newThread(() -> run());
+        /**
+         * 累计延迟分布, 纳秒
+         */
+        public Histogram cumulativeHistogram() {
+            return cumulativeHistogram;
         }
 
-        private void run() {
-            try {
-                startSemaphore.acquire();
-            } catch (InterruptedException e) {
-            }
-            System.out.printf("[%s] Worker %s started\n", format.format(new Date()), thread.getName());
-            final Callable<Boolean> transaction = config.action;
-            final boolean stopWhenError = config.stopWhenError;
-            final Reporter stater = reporter;
-            while (!stopped) {
-                try {
-                    boolean success = transaction.call();
-                    stater.actionDone(success);
-                } catch (Throwable e) {
-                    stater.actionError(e);
-                    if (stopWhenError) {
-                        stopped = true;
-                    }
-                }
-            }
-            System.out.printf("[%s] Worker %s stopped\n", format.format(new Date()), thread.getName());
+        /**
+         * 稳定阶段的累计延迟分布, 不含预热与冷却, 纳秒
+         */
+        public Histogram measuredHistogram() {
+            return measuredHistogram;
         }
 
-        final void start() {
-            thread.start();
+        /**
+         * 稳定阶段的累计成功事务数
+         */
+        public long measuredSuccess() {
+            return measuredSuccess;
         }
 
-        final void stop() {
-            this.stopped = true;
+        public long measuredFailure() {
+            return measuredFailure;
         }
 
-        final void join() throws InterruptedException {
-            thread.join();
+        public long measuredError() {
+            return measuredError;
         }
-    }
 
-    public static final class LoadRunnberBuilder {
-        private final Config config = new Config();
+        /**
+         * 稳定阶段已运行的时长, 纳秒
+         */
+        public long measuredNanos() {
+            return measuredNanos;
+        }
 
-        public LoadRunner build() {
-            return new LoadRunner(config.validate());
+        /**
+         * 稳定阶段的平均每秒成功事务数
+         */
+        public double measuredTps() {
+            return measuredNanos > 0 ? measuredSuccess * 1e9 / measuredNanos : 0;
         }
 
         /**
-         * 指定使用几个线程
+         * 是否统计了资源消耗
+         *
+         * @see LoadRunnberBuilder#measureResources()
          */
-        public LoadRunnberBuilder threads(int threads) {
-            config.threads = threads;
-            return this;
+        public boolean resourcesMeasured() {
+            return resourcesMeasured;
         }
 
         /**
-         * 指定使用几个线程，同时指定每durationSecs秒启动threadsEachDuration线程
+         * 本周期事务在worker线程上消耗的CPU时间, 纳秒. 异步事务只计发起部分
          */
-        public LoadRunnberBuilder threads(int threads, int durationSecs, int threadsEachDuration) {
-            config.threads = threads;
-            config.duration = durationSecs;
-            config.threadsEachDuration = threadsEachDuration;
-            return this;
+        public long cpuNanos() {
+            return cpuNanos;
         }
 
         /**
-         * 指定事务，若action.call() == true，则事务成功，否则事务失败
+         * 本周期事务在worker线程上分配的内存, 字节
          */
-        public LoadRunnberBuilder action(Callable<Boolean> action) {
-            config.action = action;
-            return this;
+        public long allocatedBytes() {
+            return allocatedBytes;
         }
 
         /**
-         * 指定运行时间，单位毫秒
+         * 本周期平均每个事务消耗的CPU时间, 微秒
          */
-        public LoadRunnberBuilder millis(long millis) {
-            config.millis = millis;
-            return this;
+        public double cpuMicrosPerTransaction() {
+            final long n = success + failure + error;
+            return n > 0 ? cpuNanos / 1000d / n : 0;
         }
 
-        public LoadRunnberBuilder stopWhenError() {
-            config.stopWhenError = true;
-            return this;
+        /**
+         * 本周期平均每个事务分配的内存, 字节
+         */
+        public double allocatedBytesPerTransaction() {
+            final long n = success + failure + error;
+            return n > 0 ? (double) allocatedBytes / n : 0;
         }
 
         /**
-         * 指定汇报间隔，单位毫秒，默认1000
+         * 本周期整个JVM的GC次数, 只在汇总报告中有值
          */
-        public LoadRunnberBuilder reportInterval(long reportInterval) {
-            config.reportInterval = reportInterval;
-            return this;
+        public long gcCount() {
+            return gcCount;
         }
 
         /**
-         * 指定汇报目标输出流，默认System.out
+         * 本周期整个JVM的GC耗时, 毫秒, 只在汇总报告中有值
          */
-        public LoadRunnberBuilder reportTo(OutputStream out) {
-            config.reportOutputStream = out;
-            return this;
+        public long gcMillis() {
+            return gcMillis;
         }
 
         /**
-         * 指定线程工厂
+         * 是否配置了限流
+         *
+         * @see LoadRunnberBuilder#limit(int)
          */
-        public LoadRunnberBuilder threadFactory(ThreadFactory tf) {
-            config.threadFactory = tf;
-            return this;
+        public boolean limited() {
+            return limited;
         }
-    }
 
-    static final class Config {
-        int threads;
-        int duration;
-        int threadsEachDuration;
-        ThreadFactory threadFactory;
-        Callable<Boolean> action;
-        long millis;
-        boolean stopWhenError;
-        long reportInterval;
-        OutputStream reportOutputStream;
+        /**
+         * 本周期所有worker等待限流器的时间之和, 纳秒, 只在汇总报告中有值
+         */
+        public long limiterWaitNanos() {
+            return limiterWaitNanos;
+        }
 
-        Config validate() {
-            if (millis <= 0) {
-                throw new IllegalArgumentException("millis is required");
-            }
+        /**
+         * 开始以来所有worker等待限流器的时间之和, 纳秒, 只在汇总报告中有值
+         */
+        public long totalLimiterWaitNanos() {
+            return totalLimiterWaitNanos;
+        }
 
-            if (threads <= 0) {
-                throw new IllegalArgumentException("threads is required");
-            }
+        /**
+         * 本周期平均每个事务等待限流器的时间, 毫秒
+         */
+        public double limiterWaitMillisPerTransaction() {
+            final long n = success + failure + error;
+            return n > 0 ? limiterWaitNanos / 1e6 / n : 0;
+        }
 
-            if (action == null) {
-                throw new IllegalArgumentException("transaction is required");
-            }
+        void resources(long cpuNanos, long allocatedBytes, long gcCount, long gcMillis) {
+            this.resourcesMeasured = true;
+            this.cpuNanos = cpuNanos;
+            this.allocatedBytes = allocatedBytes;
+            this.gcCount = gcCount;
+            this.gcMillis = gcMillis;
+        }
 
-            if (threadFactory == null) {
-                threadFactory = new NamedThreadFactory("LoadRunner-Worker");
-            }
+        void limited(long waitNanos, long totalWaitNanos) {
+            this.limited = true;
+            this.limiterWaitNanos = waitNanos;
+            this.totalLimiterWaitNanos = totalWaitNanos;
+        }
 
-            if (reportInterval <= 1000) {
-                reportInterval = 1000;
-            }
+        void measured(Histogram histogram, long success, long failure, long error, long nanos) {
+            this.measuredHistogram = histogram;
+            this.measuredSuccess = success;
+            this.measuredFailure = failure;
+            this.measuredError = error;
+            this.measuredNanos = nanos;
+        }
+    }
 
-            if (reportOutputStream == null) {
-                reportOutputStream = System.out;
-            }
-            return this;
+    /**
+     * 运行阶段, 预热与冷却阶段的结果不计入最终统计
+     */
+    public enum Phase {
+        WARMUP, STEADY, COOLDOWN;
+
+        /**
+         * 小写名称, 用于输出
+         */
+        public String label() {
+            return name().toLowerCase(Locale.ROOT);
         }
     }
 
-    static abstract class StartSemaphore {
+    /**
+     * 汇报周期回调, 在汇报线程上执行
+     */
+    interface ReportListener {
 
-        protected final AtomicInteger totalThreads = new AtomicInteger(); // 总线程数
+        void onReport(Report report);
 
-        void acquire() throws InterruptedException {
-            totalThreads.incrementAndGet();
-            acquire0();
+        /**
+         * 运行结束, report为最后一个周期
+         */
+        default void onFinish(Report report) {
         }
+    }
 
-        protected abstract void acquire0() throws InterruptedException;
+    // 在汇报线程上把周期结果写入ReportSink
+    static final class SinkListener implements ReportListener {
 
-        void start() {
+        final ReportSink sink;
+
+        SinkListener(ReportSink sink) {
+            this.sink = sink;
         }
 
-        void stop() {
+        @Override
+        public void onReport(Report report) {
+            try {
+                sink.write(report);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        @Override
+        public void onFinish(Report report) {
+            try {
+                sink.close();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    static final class Reporter {
+        static final NamedThreadFactory tf = new NamedThreadFactory("LoadRunner-Reporter", true);
+
+        // 分段记录器的分段分配, 只在发生竞争时前进
+        static final AtomicInteger nextSlot = new AtomicInteger();
+        static final ThreadLocal<int[]> callbackSlot = ThreadLocal
+                .withInitial(() -> new int[] { nextSlot.getAndIncrement() });
+
+        final Config config;
+        final Thread thread;
+        final TransactionStats[] stats;
+        final LongAdder lateCounter = new LongAdder();
+        final LongAdder droppedCounter = new LongAdder();
+        final LongAdder limiterWaitNanos = new LongAdder();
+        final CopyOnWriteArrayList<ReportListener> listeners = new CopyOnWriteArrayList<>();
+        final PrintStream out;
+        long startNanos;
+        long lastTickNanos;
+        // 上一次汇报的计划时刻, 下一次从它算起, 汇报本身的耗时与唤醒延迟不会累积
+        long lastDeadline;
+        volatile Report finalReport;
+        ProfileDriver driver;
+
+        // 预热结束与冷却开始的时刻, 相对startNanos
+        final long warmupEndNanos;
+        final long cooldownStartNanos;
+        final boolean phased;
+
+        // 汇总直方图, 只由汇报线程访问
+        final Histogram cumulative = new Histogram();
+        final Histogram intervalHistogram = new Histogram();
+        final Histogram measured = new Histogram();
+        long measuredNanos;
+
+        final ResourceMeter resourceMeter;
+        long lastGcCount, lastGcMillis;
+        long lastLimiterWaitNanos;
+
+        volatile boolean stopped;
+
+        Reporter(Config config) {
+            this.config = config;
+            this.out = new PrintStream(config.reportOutputStream);
+            int stripes = 1;
+            while (stripes < Runtime.getRuntime().availableProcessors() * 2) {
+                stripes <<= 1;
+            }
+            this.stats = new TransactionStats[config.transactions.size()];
+            for (int i = 0; i < stats.length; i++) {
+                final Transaction tx = config.transactions.get(i);
+                // 只有虚拟线程模式与异步事务的完成回调使用分段记录器
+                stats[i] = new TransactionStats(tx, config.virtualThreads || tx.asyncAction != null ? stripes : 0);
+            }
+            this.warmupEndNanos = TimeUnit.MILLISECONDS.toNanos(config.warmupMillis);
+            this.cooldownStartNanos = config.cooldownMillis > 0
+                    ? TimeUnit.MILLISECONDS.toNanos(config.millis - config.cooldownMillis) : Long.MAX_VALUE;
+            this.phased = config.warmupMillis > 0 || config.cooldownMillis > 0;
+            this.resourceMeter = config.measureResources ? new ResourceMeter() : null;
+            if (resourceMeter != null) {
+                lastGcCount = ResourceMeter.gcCount();
+                lastGcMillis = ResourceMeter.gcMillis();
+            }
+            this.thread = tf.newThread(() -> run());
+        }
+
+        Phase phaseAt(long elapsedNanos) {
+            if (elapsedNanos < warmupEndNanos) {
+                return Phase.WARMUP;
+            }
+            return elapsedNanos < cooldownStartNanos ? Phase.STEADY : Phase.COOLDOWN;
+        }
+
+        // 下次汇报的时刻, 遇到阶段边界时提前, 保证每个周期只属于一个阶段
+        private long nextTickNanos(long interval) {
+            final long intervalNanos = TimeUnit.MILLISECONDS.toNanos(interval);
+            long next = lastDeadline + intervalNanos;
+            final long now = System.nanoTime();
+            if (next < now) {
+                // 汇报耗时超过一个周期时跳过错过的时刻, 而不是连续补报
+                next += (now - next) / intervalNanos * intervalNanos;
+            }
+            final long elapsed = lastDeadline - startNanos;
+            if (elapsed < warmupEndNanos && startNanos + warmupEndNanos < next) {
+                return startNanos + warmupEndNanos;
+            }
+            if (elapsed < cooldownStartNanos && cooldownStartNanos != Long.MAX_VALUE
+                    && startNanos + cooldownStartNanos < next) {
+                return startNanos + cooldownStartNanos;
+            }
+            return next;
+        }
+
+        void actionDone(Transaction tx, boolean success) {
+            if (success) {
+                stats[tx.index].successCounter.increment();
+            } else {
+                stats[tx.index].failureCounter.increment();
+            }
+        }
+
+        void actionError(Transaction tx, Throwable e) {
+            stats[tx.index].errorCounter.increment();
+        }
+
+        void resourceUsed(Transaction tx, long cpuNanos, long allocatedBytes) {
+            final TransactionStats s = stats[tx.index];
+            s.cpuNanos.add(cpuNanos);
+            s.allocatedBytes.add(allocatedBytes);
+        }
+
+        void actionLate() {
+            lateCounter.increment();
+        }
+
+        void actionDropped() {
+            droppedCounter.increment();
+        }
+
+        void limiterWaited(long nanos) {
+            limiterWaitNanos.add(nanos);
+        }
+
+        /**
+         * 为worker创建延迟记录器, 每个worker每种事务独占一个, 记录时无竞争
+         */
+        Histogram.Recorder[] newRecorders() {
+            final Histogram.Recorder[] recorders = new Histogram.Recorder[stats.length];
+            for (int i = 0; i < stats.length; i++) {
+                recorders[i] = new Histogram.Recorder();
+                stats[i].recorders.add(recorders[i]);
+            }
+            return recorders;
+        }
+
+        /**
+         * worker退出时归还记录器, 由汇报线程在下次汇报时并入已退出worker的直方图并移除
+         */
+        void retireRecorders(Histogram.Recorder[] recorders) {
+            for (int i = 0; i < stats.length; i++) {
+                stats[i].retiring.offer(recorders[i]);
+            }
+        }
+
+        /**
+         * 在分段的共享记录器上记录, 供虚拟线程worker与异步事务的完成回调使用. 所在分段发生竞争时换到下一个分段,
+         * 与{@link LongAdder}相同, 同时运行的记录者会逐渐分散到不同分段
+         *
+         * @return 本次使用的分段, 调用者保存后下次传入
+         */
+        int recordStriped(Transaction tx, int slot, long value) {
+            final Histogram.ConcurrentRecorder[] recorders = stats[tx.index].stripedRecorders;
+            final int mask = recorders.length - 1;
+            if (!recorders[slot & mask].tryRecordValue(value)) {
+                slot = nextSlot.getAndIncrement();
+                recorders[slot & mask].recordValue(value);
+            }
+            return slot;
+        }
+
+        // 异步事务的完成回调可能在任意线程执行, 分段保存在线程本地
+        void recordCallback(Transaction tx, long value) {
+            final int[] slot = callbackSlot.get();
+            slot[0] = recordStriped(tx, slot[0], value);
+        }
+
+        long succeedTransactions() {
+            long sum = 0;
+            for (TransactionStats s : stats) {
+                sum += s.successCounter.sum();
+            }
+            return sum;
+        }
+
+        long failureTransactions() {
+            long sum = 0;
+            for (TransactionStats s : stats) {
+                sum += s.failureCounter.sum();
+            }
+            return sum;
+        }
+
+        private void run() {
+            final PrintStream out = this.out;
+            final long interval = config.reportInterval;
+            lastTickNanos = startNanos;
+            lastDeadline = startNanos;
+            while (!stopped) {
+                // 用park而不是中断唤醒, 避免中断关闭sink使用的FileChannel
+                final long deadline = nextTickNanos(interval);
+                long sleepNanos;
+                while (!stopped && (sleepNanos = deadline - System.nanoTime()) > 0) {
+                    LockSupport.parkNanos(this, sleepNanos);
+                }
+                if (stopped) {
+                    break;
+                }
+
+                lastDeadline = deadline;
+                final Report report = tick();
+                printInterval(out, report, phased, config.openLoop());
+                if (driver != null) {
+                    out.printf("[%s] active workers = %10d\n", format.format(new Date()), driver.active);
+                }
+                fireReport(report);
+            }
+
+            final Report report = tick();
+            printSummary(out, report, phased, config.openLoop());
+            fireReport(report);
+            finalReport = report;
+            for (ReportListener l : listeners) {
+                try {
+                    l.onFinish(report);
+                } catch (Throwable e) {
+                    e.printStackTrace(out);
+                }
+            }
+            out.flush();
+        }
+
+        // 汇总本周期计数与直方图
+        private Report tick() {
+            final long now = System.nanoTime();
+            final long timestamp = System.currentTimeMillis();
+            final long intervalNanos = now - lastTickNanos;
+            final Phase phase = phaseAt(lastTickNanos - startNanos);
+            final long late = lateCounter.sum(), dropped = droppedCounter.sum();
+            intervalHistogram.reset();
+            cumulative.reset();
+            if (phase == Phase.STEADY) {
+                measuredNanos += intervalNanos;
+            }
+            long success = 0, failure = 0, error = 0, totalSuccess = 0, totalFailure = 0, totalError = 0;
+            long measuredSuccess = 0, measuredFailure = 0, measuredError = 0;
+            final List<Report> transactions = new ArrayList<>(stats.length);
+            for (TransactionStats s : stats) {
+                final Report r = s.report(phase, timestamp, intervalNanos, late, dropped, measuredNanos,
+                        resourceMeter != null);
+                intervalHistogram.add(r.histogram);
+                cumulative.add(r.cumulativeHistogram);
+                success += r.success;
+                failure += r.failure;
+                error += r.error;
+                totalSuccess += r.totalSuccess;
+                totalFailure += r.totalFailure;
+                totalError += r.totalError;
+                measuredSuccess += r.measuredSuccess;
+                measuredFailure += r.measuredFailure;
+                measuredError += r.measuredError;
+                transactions.add(r);
+            }
+            if (phase == Phase.STEADY) {
+                measured.add(intervalHistogram);
+            }
+            final Report report = new Report(Report.TOTAL, phase, timestamp, intervalNanos, success, failure, error,
+                    totalSuccess, totalFailure, totalError, late, dropped, intervalHistogram, cumulative);
+            report.measured(measured, measuredSuccess, measuredFailure, measuredError, measuredNanos);
+            if (resourceMeter != null) {
+                long cpu = 0, allocated = 0;
+                for (Report r : transactions) {
+                    cpu += r.cpuNanos;
+                    allocated += r.allocatedBytes;
+                }
+                final long gcCount = ResourceMeter.gcCount(), gcMillis = ResourceMeter.gcMillis();
+                report.resources(cpu, allocated, gcCount - lastGcCount, gcMillis - lastGcMillis);
+                lastGcCount = gcCount;
+                lastGcMillis = gcMillis;
+            }
+            if (config.limit > 0) {
+                final long waited = limiterWaitNanos.sum();
+                report.limited(waited - lastLimiterWaitNanos, waited);
+                lastLimiterWaitNanos = waited;
+            }
+            if (stats.length > 1) {
+                report.transactions = Collections.unmodifiableList(transactions);
+            }
+            lastTickNanos = now;
+            return report;
+        }
+
+        private void fireReport(Report report) {
+            for (ReportListener l : listeners) {
+                try {
+                    l.onReport(report);
+                } catch (Throwable e) {
+                    e.printStackTrace(out);
+                }
+            }
+        }
+
+        static void printInterval(PrintStream out, Report report, boolean phased, boolean open) {
+            final String label = phased ? String.format("%-8s ", report.phase.label()) : "";
+            final Histogram h = report.histogram;
+            out.printf("[%s] %stps = %10d, success = %10d, failure = %10d, error = %10d, "
+                    + "p50 = %9.3fms, p99 = %9.3fms, p99.9 = %9.3fms, max = %9.3fms\n", format.format(new Date()),
+                    label, (long) report.tps(), report.totalSuccess, report.totalFailure, report.totalError,
+                    millis(h.getValueAtPercentile(50)), millis(h.getValueAtPercentile(99)),
+                    millis(h.getValueAtPercentile(99.9)), millis(h.getMax()));
+            for (Report r : report.transactions) {
+                final Histogram th = r.histogram;
+                out.printf("[%s] %s  %-12s tps = %10d, success = %10d, failure = %10d, error = %10d, "
+                        + "p50 = %9.3fms, p99 = %9.3fms, p99.9 = %9.3fms, max = %9.3fms\n",
+                        format.format(new Date()), label, r.name, (long) r.tps(), r.totalSuccess, r.totalFailure,
+                        r.totalError, millis(th.getValueAtPercentile(50)), millis(th.getValueAtPercentile(99)),
+                        millis(th.getValueAtPercentile(99.9)), millis(th.getMax()));
+            }
+            if (open) {
+                out.printf("[%s] late = %10d, dropped = %10d\n", format.format(new Date()), report.totalLate,
+                        report.totalDropped);
+            }
+            if (report.limited) {
+                out.printf("[%s] %slimiter wait = %9.3fms/tx, total = %10.3fs\n", format.format(new Date()), label,
+                        report.limiterWaitMillisPerTransaction(), report.totalLimiterWaitNanos / 1e9);
+            }
+            if (report.resourcesMeasured) {
+                out.printf("[%s] %scpu = %10.1fus/tx, alloc = %10.0fB/tx, gc = %6d, gc time = %6dms\n",
+                        format.format(new Date()), label, report.cpuMicrosPerTransaction(),
+                        report.allocatedBytesPerTransaction(), report.gcCount, report.gcMillis);
+                for (Report r : report.transactions) {
+                    out.printf("[%s] %s  %-12s cpu = %10.1fus/tx, alloc = %10.0fB/tx\n", format.format(new Date()),
+                            label, r.name, r.cpuMicrosPerTransaction(), r.allocatedBytesPerTransaction());
+                }
+            }
+        }
+
+        // 汇总只统计稳定阶段
+        static void printSummary(PrintStream out, Report report, boolean phased, boolean open) {
+            if (phased) {
+                out.printf("[%s] summary: warmup and cooldown excluded, measured = %.3fs, tps = %.1f\n",
+                        format.format(new Date()), report.measuredNanos / 1e9, report.measuredTps());
+            }
+            printSummary(out, "summary", report.measuredHistogram);
+            for (Report r : report.transactions) {
+                printSummary(out, "summary[" + r.name + "]", r.measuredHistogram);
+            }
+            if (open) {
+                out.printf("[%s] summary: late = %d, dropped = %d\n", format.format(new Date()), report.totalLate,
+                        report.totalDropped);
+            }
+            if (report.limited) {
+                final long n = report.totalSuccess + report.totalFailure + report.totalError;
+                out.printf("[%s] summary: limiter wait = %.3fs, %.3fms/tx\n", format.format(new Date()),
+                        report.totalLimiterWaitNanos / 1e9, n > 0 ? report.totalLimiterWaitNanos / 1e6 / n : 0);
+            }
+        }
+
+        private static void printSummary(PrintStream out, String title, Histogram h) {
+            out.printf("[%s] %s: transactions = %d, min = %.3fms, mean = %.3fms, p50 = %.3fms, p90 = %.3fms, "
+                    + "p99 = %.3fms, p99.9 = %.3fms, p99.99 = %.3fms, max = %.3fms\n", format.format(new Date()),
+                    title, h.getTotalCount(), millis(h.getMin()), h.getMean() / 1000000,
+                    millis(h.getValueAtPercentile(50)), millis(h.getValueAtPercentile(90)),
+                    millis(h.getValueAtPercentile(99)), millis(h.getValueAtPercentile(99.9)),
+                    millis(h.getValueAtPercentile(99.99)), millis(h.getMax()));
+        }
+
+        static double millis(long nanos) {
+            return nanos / 1000000d;
+        }
+
+        final void start() {
+            thread.start();
+        }
+
+        final void stop() {
+            stopped = true;
+            LockSupport.unpark(thread);
+        }
+
+        final void join() throws InterruptedException {
+            thread.join();
+        }
+    }
+
+    /**
+     * 单个事务的计数器与延迟记录器
+     */
+    static final class TransactionStats {
+
+        final Transaction transaction;
+        final LongAdder successCounter = new LongAdder();
+        final LongAdder failureCounter = new LongAdder();
+        final LongAdder errorCounter = new LongAdder();
+        final Set<Histogram.Recorder> recorders = ConcurrentHashMap.newKeySet();
+        // 已退出worker的记录器, 及其合并后的计数, retired只由汇报线程访问
+        final ConcurrentLinkedQueue<Histogram.Recorder> retiring = new ConcurrentLinkedQueue<>();
+        final Histogram retired = new Histogram();
+        // 未使用分段记录器时为null
+        final Histogram.ConcurrentRecorder[] stripedRecorders;
+        final LongAdder cpuNanos = new LongAdder();
+        final LongAdder allocatedBytes = new LongAdder();
+        long lastSuccess, lastFailure, lastError, lastCpuNanos, lastAllocatedBytes;
+        long measuredSuccess, measuredFailure, measuredError;
+        final Histogram measured = new Histogram();
+
+        // 累计直方图快照, 每次汇报时与新快照相减得到本周期直方图, 只由汇报线程访问
+        Histogram cumulative = new Histogram();
+        Histogram snapshot = new Histogram();
+        final Histogram intervalHistogram = new Histogram();
+
+        TransactionStats(Transaction transaction, int stripes) {
+            this.transaction = transaction;
+            this.stripedRecorders = stripes > 0 ? new Histogram.ConcurrentRecorder[stripes] : null;
+            for (int i = 0; i < stripes; i++) {
+                stripedRecorders[i] = new Histogram.ConcurrentRecorder();
+                recorders.add(stripedRecorders[i]);
+            }
+        }
+
+        Report report(Phase phase, long timestamp, long intervalNanos, long late, long dropped,
+                long measuredNanos, boolean measureResources) {
+            final long success = successCounter.sum(), failure = failureCounter.sum(), error = errorCounter.sum();
+            takeSnapshot();
+            final Report report = new Report(transaction.name, phase, timestamp, intervalNanos,
+                    success - lastSuccess, failure - lastFailure, error - lastError, success, failure, error, late,
+                    dropped, intervalHistogram, cumulative);
+            if (phase == Phase.STEADY) {
+                measured.add(intervalHistogram);
+                measuredSuccess += report.success;
+                measuredFailure += report.failure;
+                measuredError += report.error;
+            }
+            report.measured(measured, measuredSuccess, measuredFailure, measuredError, measuredNanos);
+            if (measureResources) {
+                final long cpu = cpuNanos.sum(), allocated = allocatedBytes.sum();
+                report.resources(cpu - lastCpuNanos, allocated - lastAllocatedBytes, 0, 0);
+                lastCpuNanos = cpu;
+                lastAllocatedBytes = allocated;
+            }
+            lastSuccess = success;
+            lastFailure = failure;
+            lastError = error;
+            return report;
+        }
+
+        // 合并所有worker的记录器, 计算本周期直方图
+        private void takeSnapshot() {
+            Histogram.Recorder r;
+            while ((r = retiring.poll()) != null) {
+                if (recorders.remove(r)) {
+                    r.addTo(retired);
+                }
+            }
+            final Histogram snapshot = this.snapshot;
+            snapshot.set(retired);
+            for (Histogram.Recorder recorder : recorders) {
+                recorder.addTo(snapshot);
+            }
+            intervalHistogram.set(snapshot);
+            intervalHistogram.subtract(cumulative);
+            this.snapshot = cumulative;
+            this.cumulative = snapshot;
+        }
+    }
+
+    static final class Worker {
+
+        static final long STOPPED = Long.MIN_VALUE;
+        static final long DROPPED = Long.MIN_VALUE + 1;
+        static final long FINISHED = Long.MIN_VALUE + 2;
+        static final long NOW = Long.MIN_VALUE + 3;
+
+        // 等待在途许可时检查停止标志的间隔
+        static final long IN_FLIGHT_POLL_MILLIS = 100;
+
+        final Thread thread;
+        final Config config;
+        final Reporter reporter;
+        final TransactionMix mix;
+        // 虚拟线程模式下为null, 改用汇报器的分段记录器, 避免每个worker占用一组直方图
+        final Histogram.Recorder[] recorders;
+        final long maxLagNanos;
+        final int index;
+        final boolean verbose;
+        final ResourceMeter resourceMeter;
+        final LoadRunner runner;
+        final long pacingNanos;
+        // 虚拟线程模式下使用的记录器分段, 只由本worker访问
+        int slot;
+
+        StartSemaphore startSemaphore;
+        Schedule schedule;
+        RateLimiter limiter;
+        Semaphore inFlight;
+        ProfileDriver driver;
+
+        volatile boolean stopped;
+        volatile boolean finished;
+
+        Worker(LoadRunner runner, int index) {
+            this.runner = runner;
+            this.config = runner.config;
+            this.pacingNanos = TimeUnit.MILLISECONDS.toNanos(config.pacingMillis);
+            this.index = index;
+            this.slot = index;
+            this.startSemaphore = runner.startSemaphore;
+            this.schedule = runner.schedule;
+            this.limiter = runner.limiter;
+            this.inFlight = runner.inFlight;
+            this.driver = runner.driver;
+            this.maxLagNanos = config.maxLagMillis > 0 ? config.maxLagMillis * 1000000 : Long.MAX_VALUE;
+            this.reporter = runner.reporter;
+            this.mix = runner.mix;
+            this.recorders = config.virtualThreads ? null : reporter.newRecorders();
+            this.verbose = !config.virtualThreads;
+            this.resourceMeter = reporter.resourceMeter;
+            this.thread = config.threadFactory.newThread(() -> run());
+        }
+
+        private void run() {
+            try {
+                startSemaphore.acquire();
+            } catch (InterruptedException e) {
+            }
+            if (verbose) {
+                System.out.printf("[%s] Worker %s started\n", format.format(new Date()), thread.getName());
+            }
+            final TransactionMix mix = this.mix;
+            final boolean stopWhenError = config.stopWhenError;
+            final Reporter stater = reporter;
+            final ThinkTime thinkTime = config.thinkTime;
+            final long pacingNanos = this.pacingNanos;
+            final long maxIterations = config.iterations;
+            final Trace trace = config.trace;
+            long iterations = 0;
+            while (!stopped) {
+                final long next = nextStart();
+                if (next == STOPPED) {
+                    break;
+                } else if (next == DROPPED) {
+                    continue;
+                } else if (next == FINISHED) {
+                    // 回放的请求日志读完
+                    finished = true;
+                    runner.workerFinished();
+                    break;
+                }
+
+                // 选择事务, 读取数据与资源快照都在计时开始之前, 闭环模式下不计入延迟;
+                // 开环模式的延迟从计划时间算起, 本来就包含发送前的一切耗时
+                final Transaction transaction = mix.next();
+                ByteBuffer record = null;
+                if (transaction.feeder != null && (record = transaction.feeder.next()) == null) {
+                    // 顺序读取的数据用完
+                    finished = true;
+                    runner.workerFinished();
+                    break;
+                } else if (trace != null) {
+                    record = trace.record();
+                }
+                final ResourceMeter meter = this.resourceMeter;
+                final long cpu = meter != null ? meter.cpuNanos() : 0;
+                final long allocated = meter != null ? meter.allocatedBytes() : 0;
+                final long start = next == NOW ? System.nanoTime() : next;
+                if (transaction.asyncAction != null) {
+                    invokeAsync(transaction, start);
+                } else {
+                    try {
+                        boolean success = record != null ? transaction.feedAction.call(record)
+                                : transaction.action.call();
+                        record(transaction, System.nanoTime() - start);
+                        stater.actionDone(transaction, success);
+                    } catch (Throwable e) {
+                        record(transaction, System.nanoTime() - start);
+                        stater.actionError(transaction, e);
+                        if (stopWhenError) {
+                            stopped = true;
+                        }
+                    }
+                }
+                if (meter != null) {
+                    stater.resourceUsed(transaction, meter.cpuNanos() - cpu, meter.allocatedBytes() - allocated);
+                }
+
+                if (maxIterations > 0 && ++iterations >= maxIterations) {
+                    finished = true;
+                    runner.workerFinished();
+                    break;
+                }
+                if (thinkTime != null || pacingNanos > 0) {
+                    pause(start);
+                }
+            }
+            if (recorders != null) {
+                reporter.retireRecorders(recorders);
+            }
+            if (verbose) {
+                System.out.printf("[%s] Worker %s stopped\n", format.format(new Date()), thread.getName());
+            }
+        }
+
+        private void record(Transaction transaction, long latency) {
+            final Histogram.Recorder[] recorders = this.recorders;
+            if (recorders != null) {
+                recorders[transaction.index].recordValue(latency);
+            } else {
+                slot = reporter.recordStriped(transaction, slot, latency);
+            }
+        }
+
+        /**
+         * 等待下一个事务可以开始, 返回开环模式下计算延迟的起点, 闭环模式下返回{@link #NOW}, 由调用者在发送前取当前时间,
+         * 或{@link #STOPPED}, {@link #DROPPED}, {@link #FINISHED}
+         */
+        private long nextStart() {
+            if (driver != null && !awaitActive()) {
+                return STOPPED;
+            }
+            final RateLimiter limiter = this.limiter;
+            if (limiter != null) {
+                // 闭环限流: 等到领取的令牌时刻再开始, 等待时间不计入延迟
+                final long acquired = System.nanoTime();
+                final long now = parkUntil(limiter.acquire());
+                reporter.limiterWaited(now - acquired);
+            }
+            final Schedule schedule = this.schedule;
+            long intended = 0;
+            if (schedule != null) {
+                // 开环模式: 等到计划时间再发送, 延迟从计划时间算起
+                intended = schedule.next();
+                if (intended == Schedule.END) {
+                    return FINISHED;
+                }
+                parkUntil(intended);
+            }
+            if (inFlight != null && !acquireInFlight()) {
+                return STOPPED;
+            }
+            if (stopped) {
+                releaseInFlight();
+                return STOPPED;
+            }
+            if (schedule == null) {
+                return NOW;
+            }
+
+            final long lag = System.nanoTime() - intended;
+            if (lag > maxLagNanos) {
+                releaseInFlight();
+                reporter.actionDropped();
+                return DROPPED;
+            }
+            if (lag > LATE_THRESHOLD_NANOS) {
+                reporter.actionLate();
+            }
+            return intended;
+        }
+
+        @SuppressWarnings("unchecked")
+        private void invokeAsync(Transaction transaction, long start) {
+            final Object future;
+            try {
+                future = transaction.asyncAction.call();
+            } catch (Throwable e) {
+                asyncDone(transaction, start, null, e);
+                return;
+            }
+
+            if (future instanceof IFuture) {
+                ((IFuture<Boolean>) future).addListener((IFutureListener<IFuture<Boolean>>) f -> {
+                    asyncDone(transaction, start, f.getNow(), f.cause());
+                });
+            } else if (future instanceof CompletionStage) {
+                ((CompletionStage<Boolean>) future).whenComplete((success, cause) -> {
+                    asyncDone(transaction, start, success, cause);
+                });
+            } else {
+                asyncDone(transaction, start, null, new IllegalStateException("async action returned " + future));
+            }
+        }
+
+        // 异步事务完成回调, 可能在任意线程执行
+        private void asyncDone(Transaction transaction, long start, Boolean success, Throwable cause) {
+            reporter.recordCallback(transaction, System.nanoTime() - start);
+            releaseInFlight();
+            if (cause != null) {
+                reporter.actionError(transaction, cause);
+                if (config.stopWhenError) {
+                    stop();
+                }
+            } else {
+                reporter.actionDone(transaction, Boolean.TRUE.equals(success));
+            }
+        }
+
+        // 负载曲线控制并发时, 序号不小于当前并发数的worker挂起等待
+        private boolean awaitActive() {
+            final ProfileDriver driver = this.driver;
+            while (index >= driver.active) {
+                if (stopped) {
+                    return false;
+                }
+                LockSupport.park(this);
+            }
+            return !stopped;
+        }
+
+        private boolean acquireInFlight() {
+            try {
+                while (!inFlight.tryAcquire(IN_FLIGHT_POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                    if (stopped) {
+                        return false;
+                    }
+                }
+                return true;
+            } catch (InterruptedException e) {
+                return false;
+            }
+        }
+
+        private void releaseInFlight() {
+            if (inFlight != null) {
+                inFlight.release();
+            }
+        }
+
+        // 思考时间从本次迭代结束算起, pacing从本次迭代开始算起, 取两者中较晚的时刻
+        private void pause(long iterationStart) {
+            long deadline = Long.MIN_VALUE;
+            if (config.thinkTime != null) {
+                deadline = System.nanoTime() + config.thinkTime.nextNanos(ThreadLocalRandom.current());
+            }
+            if (pacingNanos > 0) {
+                deadline = Math.max(deadline, iterationStart + pacingNanos);
+            }
+            parkUntil(deadline);
+        }
+
+        /**
+         * 等待直到System.nanoTime() >= deadline或worker被停止, 返回等待结束时的System.nanoTime()
+         */
+        private long parkUntil(long deadline) {
+            long now;
+            while ((now = System.nanoTime()) < deadline && !stopped) {
+                final long remaining = deadline - now;
+                if (remaining > SPIN_THRESHOLD_NANOS) {
+                    LockSupport.parkNanos(this, remaining - SPIN_THRESHOLD_NANOS);
+                }
+            }
+            return now;
+        }
+
+        final void start() {
+            thread.start();
+        }
+
+        final void stop() {
+            this.stopped = true;
+            LockSupport.unpark(thread);
+        }
+
+        final void join() throws InterruptedException {
+            thread.join();
+        }
+    }
+
+    public static final class LoadRunnberBuilder {
+        final Config config = new Config();
+
+        public LoadRunner build() {
+            return new LoadRunner(config.validate());
+        }
+
+        /**
+         * 指定使用几个线程
+         */
+        public LoadRunnberBuilder threads(int threads) {
+            config.threads = threads;
+            return this;
+        }
+
+        /**
+         * 指定使用几个线程，同时指定每durationSecs秒启动threadsEachDuration线程
+         */
+        public LoadRunnberBuilder threads(int threads, int durationSecs, int threadsEachDuration) {
+            config.threads = threads;
+            config.duration = durationSecs;
+            config.threadsEachDuration = threadsEachDuration;
+            return this;
+        }
+
+        /**
+         * 指定事务，若action.call() == true，则事务成功，否则事务失败
+         */
+        public LoadRunnberBuilder action(Callable<Boolean> action) {
+            config.action = action;
+            return this;
+        }
+
+        /**
+         * 指定并发数曲线, 运行过程中按曲线增减活跃线程. 未指定threads时以曲线最大值为线程数,
+         * 未指定运行时间时以曲线时长为运行时间
+         */
+        public LoadRunnberBuilder profile(LoadProfile profile) {
+            config.profile = profile;
+            return this;
+        }
+
+        /**
+         * 开环模式, 按到达率曲线(每秒事务数)调度事务, threads为最大并发数. 未指定运行时间时以曲线时长为运行时间
+         */
+        public LoadRunnberBuilder rateProfile(LoadProfile profile) {
+            config.rateProfile = profile;
+            return this;
+        }
+
+        /**
+         * 自动搜索饱和点: 逐步提高并发数或到达率, 找到吞吐不再增长或p99超限的拐点, 找到后结束运行.
+         * 未指定运行时间时不限时长
+         *
+         * @see LoadRunner#saturationPoint()
+         */
+        public LoadRunnberBuilder search(SaturationSearch search) {
+            config.search = search;
+            return this;
+        }
+
+        /**
+         * 指定异步事务, 返回{@link IFuture}，若future成功且结果为true，则事务成功，否则事务失败
+         */
+        public LoadRunnberBuilder asyncAction(Callable<? extends IFuture<Boolean>> action) {
+            config.asyncAction = action;
+            return this;
+        }
+
+        /**
+         * 指定异步事务, 返回{@link CompletionStage}，若stage正常完成且结果为true，则事务成功，否则事务失败
+         */
+        public LoadRunnberBuilder completableAction(Callable<? extends CompletionStage<Boolean>> action) {
+            config.asyncAction = action;
+            return this;
+        }
+
+        /**
+         * 指定异步事务的最大在途数, 默认1000
+         */
+        public LoadRunnberBuilder maxInFlight(int maxInFlight) {
+            config.maxInFlight = maxInFlight;
+            return this;
+        }
+
+        /**
+         * 添加一个具名事务, 每次迭代按权重随机选择一个事务执行, 汇报时分别统计各事务
+         */
+        public LoadRunnberBuilder action(String name, int weight, Callable<Boolean> action) {
+            config.transactions.add(new Transaction(name, weight, Objects.requireNonNull(action, "action"), null));
+            return this;
+        }
+
+        /**
+         * 指定使用数据源的事务, 每次迭代从feeder取一条记录交给action, 顺序读取的记录用完时worker结束,
+         * 所有worker都结束后提前结束运行
+         */
+        public LoadRunnberBuilder action(Feeder feeder, Feeder.Action action) {
+            config.transactions.add(new Transaction(Report.TOTAL, 1, feeder, action));
+            return this;
+        }
+
+        /**
+         * 添加一个使用数据源的具名事务, 见{@link #action(String, int, Callable)}和{@link #action(Feeder, Feeder.Action)}
+         */
+        public LoadRunnberBuilder action(String name, int weight, Feeder feeder, Feeder.Action action) {
+            config.transactions.add(new Transaction(name, weight, feeder, action));
+            return this;
+        }
+
+        /**
+         * 添加一个具名异步事务, 见{@link #action(String, int, Callable)}
+         */
+        public LoadRunnberBuilder asyncAction(String name, int weight, Callable<? extends IFuture<Boolean>> action) {
+            config.transactions.add(new Transaction(name, weight, null, Objects.requireNonNull(action, "action")));
+            return this;
+        }
+
+        /**
+         * 添加一个具名异步事务, 见{@link #action(String, int, Callable)}
+         */
+        public LoadRunnberBuilder completableAction(String name, int weight,
+                Callable<? extends CompletionStage<Boolean>> action) {
+            config.transactions.add(new Transaction(name, weight, null, Objects.requireNonNull(action, "action")));
+            return this;
+        }
+
+        /**
+         * 指定运行时间，单位毫秒
+         */
+        public LoadRunnberBuilder millis(long millis) {
+            config.millis = millis;
+            return this;
+        }
+
+        /**
+         * 指定预热时间, 单位毫秒. 预热阶段计入运行时间, 照常输出并标注, 但不计入最终统计
+         */
+        public LoadRunnberBuilder warmup(long millis) {
+            config.warmupMillis = millis;
+            return this;
+        }
+
+        /**
+         * 指定冷却时间, 单位毫秒. 运行时间的最后millis毫秒为冷却阶段, 照常输出并标注, 但不计入最终统计
+         */
+        public LoadRunnberBuilder cooldown(long millis) {
+            config.cooldownMillis = millis;
+            return this;
+        }
+
+        /**
+         * 开环模式, 以每秒txPerSecond个事务的固定到达率调度事务, threads为最大并发数
+         */
+        public LoadRunnberBuilder rate(int txPerSecond) {
+            config.rate = txPerSecond;
+            return this;
+        }
+
+        /**
+         * 开环模式, 以每秒txPerSecond个事务的固定到达率调度事务, 落后计划时间超过maxLagMillis毫秒的事务将被丢弃
+         */
+        public LoadRunnberBuilder rate(int txPerSecond, long maxLagMillis) {
+            config.rate = txPerSecond;
+            config.maxLagMillis = maxLagMillis;
+            return this;
+        }
+
+        /**
+         * 出现异常时停止该worker, 需要按错误率中止整个运行时请使用{@link #sla(Sla)}
+         */
+        public LoadRunnberBuilder stopWhenError() {
+            config.stopWhenError = true;
+            return this;
+        }
+
+        /**
+         * 指定汇报间隔，单位毫秒，默认1000，最小10
+         */
+        public LoadRunnberBuilder reportInterval(long reportInterval) {
+            config.reportInterval = reportInterval;
+            return this;
+        }
+
+        /**
+         * 保留最近多少个汇报周期的快照, 默认0, 即不保留
+         *
+         * @see LoadRunner#history()
+         */
+        public LoadRunnberBuilder history(int ticks) {
+            config.history = ticks;
+            return this;
+        }
+
+        /**
+         * 指定汇报目标输出流，默认System.out
+         */
+        public LoadRunnberBuilder reportTo(OutputStream out) {
+            config.reportOutputStream = out;
+            return this;
+        }
+
+        /**
+         * 添加结果输出, 每个汇报周期在汇报线程上写入一次, 运行结束时关闭
+         *
+         * @see ReportSinks
+         */
+        public LoadRunnberBuilder reportSink(ReportSink sink) {
+            config.sinks.add(Objects.requireNonNull(sink, "sink"));
+            return this;
+        }
+
+        /**
+         * 使用虚拟线程运行worker(需要JDK 21+), 适合用大量线程模拟阻塞式客户端, 线程数可达百万级.
+         * 该模式下worker共享分段的延迟记录器, 且不再逐个打印worker启停
+         *
+         * @see Platforms#supportsVirtualThreads()
+         */
+        public LoadRunnberBuilder virtualThreads() {
+            config.virtualThreads = true;
+            return this;
+        }
+
+        /**
+         * 每次迭代结束后按分布停顿一段时间再开始下一次, 只用于闭环模式
+         */
+        public LoadRunnberBuilder thinkTime(ThinkTime thinkTime) {
+            config.thinkTime = thinkTime;
+            return this;
+        }
+
+        /**
+         * 每个worker两次迭代开始时刻的最小间隔, 单位毫秒, 事务耗时不足时补足等待, 只用于闭环模式.
+         * 与思考时间同时指定时取两者中较晚的时刻
+         */
+        public LoadRunnberBuilder pacing(long millis) {
+            config.pacingMillis = millis;
+            return this;
+        }
+
+        /**
+         * 回放请求日志(开环模式), 每个请求按日志中的时间偏移发送, 延迟从计划发送时间算起, threads为最大并发数,
+         * 日志读完后提前结束运行, millis为回放时长上限. 日志只能回放一次, 运行结束时由{@link LoadRunner#join()}关闭
+         */
+        public LoadRunnberBuilder replay(Trace trace, Feeder.Action action) {
+            config.trace = Objects.requireNonNull(trace, "trace");
+            config.transactions.add(new Transaction(Report.TOTAL, 1, null, null, null,
+                    Objects.requireNonNull(action, "action")));
+            return this;
+        }
+
+        /**
+         * 闭环模式下限制总吞吐不超过每秒tps个事务, 所有worker开始事务前从共享的令牌桶领取令牌,
+         * 等待令牌的时间不计入延迟, 单独汇报
+         */
+        public LoadRunnberBuilder limit(int tps) {
+            config.limit = tps;
+            return this;
+        }
+
+        /**
+         * 每个worker最多执行的迭代次数, 所有worker都完成后提前结束运行
+         */
+        public LoadRunnberBuilder iterations(long iterations) {
+            config.iterations = iterations;
+            return this;
+        }
+
+        /**
+         * 添加通过条件, 每个汇报周期检查一次, 被打破时提前结束运行
+         *
+         * @see LoadRunner#result()
+         */
+        public LoadRunnberBuilder sla(Sla rule) {
+            config.slas.add(Objects.requireNonNull(rule, "rule"));
+            return this;
+        }
+
+        /**
+         * 统计每个事务在worker线程上消耗的CPU时间与分配的内存, 以及每个汇报周期的GC次数与耗时.
+         * 每次事务前后各读取一次线程CPU时间与已分配字节数, 有一定开销, 默认关闭
+         */
+        public LoadRunnberBuilder measureResources() {
+            config.measureResources = true;
+            return this;
+        }
+
+        /**
+         * 指定线程工厂
+         */
+        public LoadRunnberBuilder threadFactory(ThreadFactory tf) {
+            config.threadFactory = tf;
+            return this;
+        }
+    }
+
+    static final class Config {
+        int threads;
+        int duration;
+        int threadsEachDuration;
+        ThreadFactory threadFactory;
+        boolean virtualThreads;
+        boolean measureResources;
+        ThinkTime thinkTime;
+        long pacingMillis;
+        long iterations;
+        int history;
+        int limit;
+        Callable<Boolean> action;
+        Callable<?> asyncAction;
+        int maxInFlight;
+        long millis;
+        long warmupMillis;
+        long cooldownMillis;
+        boolean stopWhenError;
+        long reportInterval;
+        OutputStream reportOutputStream;
+        int rate;
+        long maxLagMillis;
+        LoadProfile profile;
+        LoadProfile rateProfile;
+        SaturationSearch search;
+        Trace trace;
+        final List<ReportSink> sinks = new ArrayList<>();
+        final List<Transaction> transactions = new ArrayList<>();
+        final List<Sla> slas = new ArrayList<>();
+
+        Config validate() {
+            if (trace != null && (profile != null || rateProfile != null || rate > 0 || search != null)) {
+                throw new IllegalArgumentException("replay is exclusive with profile, rateProfile, rate and search");
+            }
+            if (search != null) {
+                if (profile != null || rateProfile != null || rate > 0) {
+                    throw new IllegalArgumentException("search is exclusive with profile, rateProfile and rate");
+                }
+                if (search.rate) {
+                    rateProfile = search.newProfile();
+                } else {
+                    profile = search.newProfile();
+                }
+            }
+            if (millis <= 0 && profile != null) {
+                millis = profile.durationMillis();
+            }
+            if (millis <= 0 && rateProfile != null) {
+                millis = rateProfile.durationMillis();
+            }
+            if (threads <= 0 && profile != null) {
+                threads = (int) Math.ceil(profile.maxValue());
+            }
+
+            if (millis <= 0) {
+                throw new IllegalArgumentException("millis is required");
+            }
+
+            if (threads <= 0) {
+                throw new IllegalArgumentException("threads is required");
+            }
+
+            if (warmupMillis < 0 || cooldownMillis < 0) {
+                throw new IllegalArgumentException("warmup and cooldown must not be negative");
+            }
+
+            if (warmupMillis + cooldownMillis >= millis) {
+                throw new IllegalArgumentException("warmup and cooldown leave no time for measurement");
+            }
+
+            if (action == null && asyncAction == null && transactions.isEmpty()) {
+                throw new IllegalArgumentException("transaction is required");
+            }
+
+            if (action != null && asyncAction != null) {
+                throw new IllegalArgumentException("action and asyncAction are mutually exclusive");
+            }
+
+            if ((action != null || asyncAction != null) && !transactions.isEmpty()) {
+                throw new IllegalArgumentException("unnamed action can not be mixed with named actions");
+            }
+
+            if (transactions.isEmpty()) {
+                transactions.add(new Transaction(Report.TOTAL, 1, action, asyncAction));
+            }
+            Set<String> names = new HashSet<>();
+            for (int i = 0; i < transactions.size(); i++) {
+                Transaction tx = transactions.get(i);
+                if (!names.add(tx.name)) {
+                    throw new IllegalArgumentException("duplicate transaction name: " + tx.name);
+                }
+                if (tx.name.equals(Report.TOTAL) && transactions.size() > 1) {
+                    throw new IllegalArgumentException("unnamed action can not be mixed with named actions");
+                }
+                tx.index = i;
+            }
+
+            if (maxInFlight <= 0) {
+                maxInFlight = 1000;
+            }
+
+            if (rate < 0) {
+                throw new IllegalArgumentException("rate must not be negative");
+            }
+
+            if (rate > 0 && rateProfile != null) {
+                throw new IllegalArgumentException("rate and rateProfile are mutually exclusive");
+            }
+
+            if (pacingMillis < 0 || iterations < 0) {
+                throw new IllegalArgumentException("pacing and iterations must not be negative");
+            }
+
+            if (limit < 0) {
+                throw new IllegalArgumentException("limit must not be negative");
+            }
+
+            if (limit > 0 && openLoop()) {
+                throw new IllegalArgumentException("limit is only supported in closed-loop mode");
+            }
+
+            if ((thinkTime != null || pacingMillis > 0) && openLoop()) {
+                throw new IllegalArgumentException("thinkTime and pacing are only supported in closed-loop mode");
+            }
+
+            if (profile != null && threads < profile.maxValue()) {
+                throw new IllegalArgumentException("threads [" + threads + "] is less than profile max value");
+            }
+
+            if (virtualThreads) {
+                if (threadFactory != null) {
+                    throw new IllegalArgumentException("virtualThreads and threadFactory are mutually exclusive");
+                }
+                threadFactory = Platforms.virtualThreadFactory("LoadRunner-Worker");
+                if (threadFactory == null) {
+                    throw new IllegalStateException("virtual threads are not supported by this JVM");
+                }
+            }
+
+            if (threadFactory == null) {
+                threadFactory = new NamedThreadFactory("LoadRunner-Worker");
+            }
+
+            if (reportInterval <= 0) {
+                reportInterval = 1000;
+            } else if (reportInterval < MIN_REPORT_INTERVAL) {
+                reportInterval = MIN_REPORT_INTERVAL;
+            }
+
+            if (history < 0) {
+                throw new IllegalArgumentException("history must not be negative");
+            }
+
+            if (reportOutputStream == null) {
+                reportOutputStream = System.out;
+            }
+            return this;
+        }
+
+        /**
+         * 是否按调度表发送(开环模式)
+         */
+        boolean openLoop() {
+            return rate > 0 || rateProfile != null || trace != null;
+        }
+
+        boolean hasAsyncTransaction() {
+            for (Transaction tx : transactions) {
+                if (tx.asyncAction != null) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    static final class Transaction {
+
+        final String name;
+        final int weight;
+        final Callable<Boolean> action;
+        final Callable<?> asyncAction;
+        final Feeder feeder;
+        final Feeder.Action feedAction;
+        int index;
+
+        Transaction(String name, int weight, Callable<Boolean> action, Callable<?> asyncAction) {
+            this(name, weight, action, asyncAction, null, null);
+        }
+
+        Transaction(String name, int weight, Feeder feeder, Feeder.Action feedAction) {
+            this(name, weight, null, null, Objects.requireNonNull(feeder, "feeder"),
+                    Objects.requireNonNull(feedAction, "action"));
+        }
+
+        Transaction(String name, int weight, Callable<Boolean> action, Callable<?> asyncAction,
+                Feeder feeder, Feeder.Action feedAction) {
+            if (weight <= 0) {
+                throw new IllegalArgumentException("weight must be positive");
+            }
+            this.name = Objects.requireNonNull(name, "name");
+            this.weight = weight;
+            this.action = action;
+            this.asyncAction = asyncAction;
+            this.feeder = feeder;
+            this.feedAction = feedAction;
+        }
+    }
+
+    /**
+     * 按权重选择事务, 使用别名法(alias method), 每次选择只需一个随机整数和一个随机浮点数
+     */
+    static final class TransactionMix {
+
+        final Transaction[] transactions;
+        final double[] probability;
+        final int[] alias;
+
+        TransactionMix(List<Transaction> list) {
+            final int n = list.size();
+            this.transactions = list.toArray(new Transaction[n]);
+            this.probability = new double[n];
+            this.alias = new int[n];
+
+            long totalWeight = 0;
+            for (Transaction tx : transactions) {
+                totalWeight += tx.weight;
+            }
+            final double[] scaled = new double[n];
+            final int[] small = new int[n], large = new int[n];
+            int smallSize = 0, largeSize = 0;
+            for (int i = 0; i < n; i++) {
+                scaled[i] = (double) transactions[i].weight * n / totalWeight;
+                if (scaled[i] < 1) {
+                    small[smallSize++] = i;
+                } else {
+                    large[largeSize++] = i;
+                }
+            }
+            while (smallSize > 0 && largeSize > 0) {
+                final int s = small[--smallSize], l = large[--largeSize];
+                probability[s] = scaled[s];
+                alias[s] = l;
+                scaled[l] = scaled[l] + scaled[s] - 1;
+                if (scaled[l] < 1) {
+                    small[smallSize++] = l;
+                } else {
+                    large[largeSize++] = l;
+                }
+            }
+            while (largeSize > 0) {
+                probability[large[--largeSize]] = 1;
+            }
+            while (smallSize > 0) {
+                probability[small[--smallSize]] = 1;
+            }
+        }
+
+        Transaction next() {
+            final Transaction[] transactions = this.transactions;
+            if (transactions.length == 1) {
+                return transactions[0];
+            }
+            final ThreadLocalRandom random = ThreadLocalRandom.current();
+            final int i = random.nextInt(transactions.length);
+            return random.nextDouble() < probability[i] ? transactions[i] : transactions[alias[i]];
+        }
+    }
+
+    /**
+     * 读取当前线程的CPU时间与已分配字节数, 不支持时返回0. 分配字节数依赖com.sun.management扩展
+     */
+    static final class ResourceMeter {
+
+        final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        final com.sun.management.ThreadMXBean allocationMXBean;
+        final boolean cpuTimeSupported;
+
+        ResourceMeter() {
+            boolean cpuTimeSupported = threadMXBean.isCurrentThreadCpuTimeSupported();
+            if (cpuTimeSupported && !threadMXBean.isThreadCpuTimeEnabled()) {
+                threadMXBean.setThreadCpuTimeEnabled(true);
+            }
+            this.cpuTimeSupported = cpuTimeSupported;
+
+            com.sun.management.ThreadMXBean allocationMXBean = null;
+            if (threadMXBean instanceof com.sun.management.ThreadMXBean) {
+                allocationMXBean = (com.sun.management.ThreadMXBean) threadMXBean;
+                if (!allocationMXBean.isThreadAllocatedMemorySupported()) {
+                    allocationMXBean = null;
+                } else if (!allocationMXBean.isThreadAllocatedMemoryEnabled()) {
+                    allocationMXBean.setThreadAllocatedMemoryEnabled(true);
+                }
+            }
+            this.allocationMXBean = allocationMXBean;
+        }
+
+        long cpuNanos() {
+            // 虚拟线程等不支持的情况返回-1
+            return cpuTimeSupported ? Math.max(threadMXBean.getCurrentThreadCpuTime(), 0) : 0;
+        }
+
+        long allocatedBytes() {
+            return allocationMXBean != null
+                    ? Math.max(allocationMXBean.getThreadAllocatedBytes(Thread.currentThread().getId()), 0) : 0;
+        }
+
+        static long gcCount() {
+            long count = 0;
+            for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+                count += Math.max(gc.getCollectionCount(), 0);
+            }
+            return count;
+        }
+
+        static long gcMillis() {
+            long millis = 0;
+            for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+                millis += Math.max(gc.getCollectionTime(), 0);
+            }
+            return millis;
+        }
+    }
+
+    /**
+     * 开环模式下的事务调度表. 固定到达率时第n个事务的计划开始时间为start + n * period,
+     * 按曲线调度时每个事务的间隔由其计划时刻的目标到达率决定
+     */
+    static final class Schedule {
+
+        // 到达率为0时向后试探的步长
+        static final long IDLE_PROBE_NANOS = 1000000;
+
+        // 回放的请求日志读完
+        static final long END = Long.MIN_VALUE;
+
+        final double periodNanos;
+        final LoadProfile profile;
+        final Trace trace;
+        final AtomicLong sequence = new AtomicLong(); // 按曲线调度时为下一个事务相对起点的纳秒数
+        volatile long startNanos;
+
+        Schedule(int rate) {
+            this.periodNanos = 1000000000d / rate;
+            this.profile = null;
+            this.trace = null;
+        }
+
+        Schedule(LoadProfile profile) {
+            this.periodNanos = 0;
+            this.profile = profile;
+            this.trace = null;
+        }
+
+        Schedule(Trace trace) {
+            this.periodNanos = 0;
+            this.profile = null;
+            this.trace = trace;
+        }
+
+        /**
+         * 领取下一个事务的计划开始时间, 首次调用时确定调度起点, 回放的请求日志读完时返回{@link #END}
+         */
+        long next() {
+            long start = startNanos;
+            if (start == 0) {
+                synchronized (this) {
+                    if ((start = startNanos) == 0) {
+                        startNanos = start = System.nanoTime();
+                    }
+                }
+            }
+            if (trace != null) {
+                final long offset;
+                try {
+                    offset = trace.next();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    return END;
+                }
+                return offset == Trace.END ? END : start + offset;
+            }
+            if (profile == null) {
+                return start + (long) (sequence.getAndIncrement() * periodNanos);
+            }
+
+            final AtomicLong sequence = this.sequence;
+            for (;;) {
+                final long offset = sequence.get();
+                final double rate = profile.valueAt(offset);
+                if (rate <= 0) {
+                    sequence.compareAndSet(offset, offset + IDLE_PROBE_NANOS);
+                } else if (sequence.compareAndSet(offset, offset + (long) (1000000000d / rate))) {
+                    return start + offset;
+                }
+            }
+        }
+    }
+
+    /**
+     * 全局令牌桶, 按GCRA(通用信元速率算法)实现: 只保存下一个令牌的发放时刻, 领取令牌即用一次CAS把它推后一个周期,
+     * 不需要补充令牌的定时线程. 空闲期间不积攒令牌, 任意时间窗口内发放的令牌数不超过限速
+     */
+    static final class RateLimiter {
+
+        final long periodNanos;
+        final AtomicLong next;
+
+        RateLimiter(int tps) {
+            this.periodNanos = Math.max(1, Math.round(1e9 / tps));
+            this.next = new AtomicLong(System.nanoTime());
+        }
+
+        /**
+         * 领取一个令牌, 返回可以使用它的时刻
+         */
+        long acquire() {
+            final AtomicLong next = this.next;
+            for (;;) {
+                final long now = System.nanoTime();
+                final long t = next.get();
+                final long slot = t - now < 0 ? now : t;
+                if (next.compareAndSet(t, slot + periodNanos)) {
+                    return slot;
+                }
+            }
+        }
+    }
+
+    static abstract class StartSemaphore {
+
+        protected final AtomicInteger totalThreads = new AtomicInteger(); // 总线程数
+
+        void acquire() throws InterruptedException {
+            totalThreads.incrementAndGet();
+            acquire0();
+        }
+
+        protected abstract void acquire0() throws InterruptedException;
+
+        void start() {
+        }
+
+        void stop() {
+        }
+    }
+
+    // 不等待, 立即启动, 由负载曲线或调度表控制节奏
+    static final class ImmediateStartSemaphore extends StartSemaphore {
+
+        @Override
+        protected void acquire0() {
+        }
+    }
+
+    /**
+     * 按负载曲线控制活跃worker数, 控制线程每{@link #TICK_NANOS}纳秒根据曲线调整一次,
+     * 增加并发时唤醒挂起的worker, 减少并发时序号靠后的worker在完成当前事务后挂起
+     */
+    static final class ProfileDriver {
+
+        static final NamedThreadFactory tf = new NamedThreadFactory("LoadRunner-ProfileDriver", true);
+
+        static final long TICK_NANOS = 1000000;
+
+        final LoadProfile profile;
+        final Worker[] workers;
+        final Thread thread;
+
+        volatile int active;
+        volatile boolean stopped;
+
+        ProfileDriver(LoadProfile profile, int threads) {
+            this.profile = profile;
+            this.workers = new Worker[threads];
+            this.thread = tf.newThread(() -> run());
+        }
+
+        private void run() {
+            final long start = System.nanoTime();
+            long tick = start;
+            while (!stopped) {
+                final int target = Math.min(workers.length, (int) Math.round(profile.valueAt(tick - start)));
+                final int previous = active;
+                active = target;
+                for (int i = previous; i < target; i++) {
+                    LockSupport.unpark(workers[i].thread);
+                }
+
+                tick += TICK_NANOS;
+                long now;
+                while ((now = System.nanoTime()) < tick && !stopped) {
+                    LockSupport.parkNanos(this, tick - now);
+                }
+            }
+        }
+
+        void start() {
+            active = Math.min(workers.length, (int) Math.round(profile.valueAt(0)));
+            thread.start();
+        }
+
+        void stop() {
+            stopped = true;
+            LockSupport.unpark(thread);
         }
     }
 
@@ -6,6 +6,7 @@ import java.lang.reflect.Field;
 import java.lang.reflect.Method;
 import java.net.InetAddress;
 import java.net.NetworkInterface;
+import java.util.concurrent.ThreadFactory;
 
 import sun.management.VMManagement;
 
@@ -52,4 +53,63 @@ public class Platforms {
 		}
 	}
 
+	/**
+	 * 当前JVM是否支持虚拟线程(JDK 21+, 或JDK 19/20启用了预览特性)
+	 */
+	public static final boolean supportsVirtualThreads() {
+		return VIRTUAL_THREADS_SUPPORTED;
+	}
+
+	/**
+	 * 创建虚拟线程工厂, 线程名为namePrefix-序号. 通过反射调用Thread.ofVirtual(), 以兼容1.8编译目标
+	 * 
+	 * @return 线程工厂, 不支持虚拟线程时返回null
+	 */
+	public static final ThreadFactory virtualThreadFactory(String namePrefix) {
+		return VIRTUAL_THREADS_SUPPORTED ? newVirtualThreadFactory(namePrefix) : null;
+	}
+
+	private static ThreadFactory newVirtualThreadFactory(String namePrefix) {
+		try {
+			Object builder = VIRTUAL_THREAD_BUILDER.invoke(null);
+			builder = BUILDER_NAME.invoke(builder, namePrefix + "-", 0L);
+			return (ThreadFactory) BUILDER_FACTORY.invoke(builder);
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	private static final Method VIRTUAL_THREAD_BUILDER;
+	private static final Method BUILDER_NAME;
+	private static final Method BUILDER_FACTORY;
+	private static final boolean VIRTUAL_THREADS_SUPPORTED;
+
+	static {
+		Method ofVirtual = null, name = null, factory = null;
+		try {
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			ofVirtual = Thread.class.getMethod("ofVirtual");
+			name = builderClass.getMethod("name", String.class, long.class);
+			factory = builderClass.getMethod("factory");
+		} catch (Exception e) {
+			ofVirtual = null;
+		}
+		VIRTUAL_THREAD_BUILDER = ofVirtual;
+		BUILDER_NAME = name;
+		BUILDER_FACTORY = factory;
+
+		// JDK 19/20未启用预览特性时Thread.ofVirtual()可以找到, 但调用会失败, 以能否创建出线程为准
+		boolean supported = false;
+		if (ofVirtual != null) {
+			try {
+				ThreadFactory f = newVirtualThreadFactory("probe");
+				supported = f != null && f.newThread(() -> {
+				}) != null;
+			} catch (Throwable e) {
+				supported = false;
+			}
+		}
+		VIRTUAL_THREADS_SUPPORTED = supported;
+	}
+
 }
@@ -0,0 +1,208 @@
+package winflex.util;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import winflex.util.LoadRunner.Phase;
+import winflex.util.LoadRunner.Report;
+import winflex.util.LoadRunner.ReportListener;
+
+/**
+ * 最近若干汇报周期的汇总快照, 环形缓冲区满后覆盖最早的周期. 配合较短的汇报间隔可以找出GC或锁竞争造成的短暂吞吐下降
+ * <p>
+ * 每个周期只保存计数与几个延迟分位数, 不保存直方图, 按列存放在基本类型数组中
+ *
+ * <pre>
+ * LoadRunner lr = LoadRunner.builder()
+ * .reportInterval(10)
+ * .history(60000)
+ * ...
+ * lr.start().join();
+ * lr.history().writeCsv(Paths.get("ticks.csv"));
+ * </pre>
+ *
+ * @author winflex
+ */
+public final class ReportHistory implements ReportListener {
+
+    final int capacity;
+    final long[] timestamps;
+    final long[] elapsedNanos;
+    final long[] intervalNanos;
+    final byte[] phases;
+    final long[] success;
+    final long[] failure;
+    final long[] error;
+    final long[] p50Nanos;
+    final long[] p99Nanos;
+    final long[] maxNanos;
+
+    // 以下字段由this保护
+    long ticks;
+    long elapsed;
+
+    ReportHistory(int capacity) {
+        this.capacity = capacity;
+        this.timestamps = new long[capacity];
+        this.elapsedNanos = new long[capacity];
+        this.intervalNanos = new long[capacity];
+        this.phases = new byte[capacity];
+        this.success = new long[capacity];
+        this.failure = new long[capacity];
+        this.error = new long[capacity];
+        this.p50Nanos = new long[capacity];
+        this.p99Nanos = new long[capacity];
+        this.maxNanos = new long[capacity];
+    }
+
+    @Override
+    public synchronized void onReport(Report report) {
+        final int i = (int) (ticks++ % capacity);
+        final Histogram h = report.histogram();
+        elapsed += report.intervalNanos();
+        timestamps[i] = report.timestamp();
+        elapsedNanos[i] = elapsed;
+        intervalNanos[i] = report.intervalNanos();
+        phases[i] = (byte) report.phase().ordinal();
+        success[i] = report.success();
+        failure[i] = report.failure();
+        error[i] = report.error();
+        p50Nanos[i] = h.getValueAtPercentile(50);
+        p99Nanos[i] = h.getValueAtPercentile(99);
+        maxNanos[i] = h.getMax();
+    }
+
+    /**
+     * 总共记录过的周期数, 包括已被覆盖的
+     */
+    public synchronized long totalTicks() {
+        return ticks;
+    }
+
+    /**
+     * 缓冲区中的周期, 按时间先后排列
+     */
+    public synchronized List<Tick> ticks() {
+        final int size = (int) Math.min(ticks, capacity);
+        final List<Tick> list = new ArrayList<>(size);
+        for (long t = ticks - size; t < ticks; t++) {
+            final int i = (int) (t % capacity);
+            list.add(new Tick(timestamps[i], elapsedNanos[i], intervalNanos[i], Phase.values()[phases[i]], success[i],
+                    failure[i], error[i], p50Nanos[i], p99Nanos[i], maxNanos[i]));
+        }
+        return list;
+    }
+
+    /**
+     * 以CSV格式导出缓冲区中的周期, 首行为表头
+     */
+    public void writeCsv(OutputStream out) throws IOException {
+        final Writer w = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+        w.write("timestamp,elapsed_ms,phase,interval_ms,tps,success,failure,error,p50_ms,p99_ms,max_ms\n");
+        for (Tick t : ticks()) {
+            w.write(String.format(Locale.ROOT, "%d,%.3f,%s,%.3f,%.3f,%d,%d,%d,%.3f,%.3f,%.3f\n", t.timestamp,
+                    t.elapsedNanos / 1e6, t.phase.label(), t.intervalNanos / 1e6, t.tps(), t.success, t.failure,
+                    t.error, t.p50Nanos / 1e6, t.p99Nanos / 1e6, t.maxNanos / 1e6));
+        }
+        w.flush();
+    }
+
+    public void writeCsv(Path path) throws IOException {
+        try (OutputStream out = Files.newOutputStream(path)) {
+            writeCsv(out);
+        }
+    }
+
+    /**
+     * 一个汇报周期的汇总快照
+     */
+    public static final class Tick {
+
+        final long timestamp;
+        final long elapsedNanos;
+        final long intervalNanos;
+        final Phase phase;
+        final long success;
+        final long failure;
+        final long error;
+        final long p50Nanos;
+        final long p99Nanos;
+        final long maxNanos;
+
+        Tick(long timestamp, long elapsedNanos, long intervalNanos, Phase phase, long success, long failure,
+                long error, long p50Nanos, long p99Nanos, long maxNanos) {
+            this.timestamp = timestamp;
+            this.elapsedNanos = elapsedNanos;
+            this.intervalNanos = intervalNanos;
+            this.phase = phase;
+            this.success = success;
+            this.failure = failure;
+            this.error = error;
+            this.p50Nanos = p50Nanos;
+            this.p99Nanos = p99Nanos;
+            this.maxNanos = maxNanos;
+        }
+
+        /**
+         * 周期结束时的时间戳, 毫秒
+         */
+        public long timestamp() {
+            return timestamp;
+        }
+
+        /**
+         * 周期结束时距开始的纳秒数
+         */
+        public long elapsedNanos() {
+            return elapsedNanos;
+        }
+
+        public long intervalNanos() {
+            return intervalNanos;
+        }
+
+        public Phase phase() {
+            return phase;
+        }
+
+        public long success() {
+            return success;
+        }
+
+        public long failure() {
+            return failure;
+        }
+
+        public long error() {
+            return error;
+        }
+
+        /**
+         * 按实际周期长度计算的每秒成功事务数
+         */
+        public double tps() {
+            return intervalNanos > 0 ? success * 1e9 / intervalNanos : 0;
+        }
+
+        public long p50Nanos() {
+            return p50Nanos;
+        }
+
+        public long p99Nanos() {
+            return p99Nanos;
+        }
+
+        public long maxNanos() {
+            return maxNanos;
+        }
+    }
+}
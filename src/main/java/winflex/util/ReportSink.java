@@ -0,0 +1,17 @@
+package winflex.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+import winflex.util.LoadRunner.Report;
+
+/**
+ * {@link LoadRunner}的结果输出, 每个汇报周期在汇报线程上调用一次{@link #write(Report)}, 运行结束时关闭
+ *
+ * @see ReportSinks
+ * @author winflex
+ */
+public interface ReportSink extends Closeable {
+
+    void write(Report report) throws IOException;
+}
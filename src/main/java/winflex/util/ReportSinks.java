@@ -0,0 +1,520 @@
+package winflex.util;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import winflex.util.LoadRunner.Phase;
+import winflex.util.LoadRunner.Report;
+
+/**
+ * 提供一系列创建{@link ReportSink}的静态方法
+ * <p>
+ * 所有sink都先编码到缓冲区再写入channel, 只在汇报线程上执行I/O, 不影响worker
+ *
+ * <pre>
+ * LoadRunner lr = LoadRunner.builder()
+ * .reportSink(ReportSinks.csv(Paths.get("result.csv")))
+ * .reportSink(ReportSinks.histogramLog(Paths.get("result.hlog")))
+ * ...
+ * Histogram total = ReportSinks.mergeHistogramLog(new FileInputStream("result.hlog"));
+ * </pre>
+ *
+ * @author winflex
+ */
+public final class ReportSinks {
+
+    static final int BUFFER_SIZE = 64 * 1024;
+
+    static final int HISTOGRAM_LOG_MAGIC = 0x4C52484C; // "LRHL"
+    static final int HISTOGRAM_LOG_VERSION = 1;
+
+    static final double[] PERCENTILES = { 50, 90, 99, 99.9 };
+
+    /**
+     * 每个周期输出一行CSV, 首行为表头
+     * <p>
+     * 以{@link OutputStream}创建的sink关闭时只flush不close该流, 以{@link Path}创建的sink关闭时关闭文件
+     */
+    public static ReportSink csv(OutputStream out) {
+        return new CsvSink(new StreamChannel(out));
+    }
+
+    public static ReportSink csv(Path path) throws IOException {
+        return new CsvSink(open(path));
+    }
+
+    /**
+     * 每个周期输出一行JSON
+     */
+    public static ReportSink jsonLines(OutputStream out) {
+        return new JsonLinesSink(new StreamChannel(out));
+    }
+
+    public static ReportSink jsonLines(Path path) throws IOException {
+        return new JsonLinesSink(open(path));
+    }
+
+    /**
+     * 二进制直方图日志, 每个周期记录计数与完整的周期直方图, 可离线合并
+     *
+     * @see HistogramLogReader
+     * @see #mergeHistogramLog(InputStream)
+     */
+    public static ReportSink histogramLog(OutputStream out) {
+        return new HistogramLogSink(new StreamChannel(out));
+    }
+
+    public static ReportSink histogramLog(Path path) throws IOException {
+        return new HistogramLogSink(open(path));
+    }
+
+    /**
+     * 合并直方图日志中稳定阶段所有周期的汇总直方图, 预热与冷却阶段不计入
+     */
+    public static Histogram mergeHistogramLog(InputStream in) throws IOException {
+        return mergeHistogramLog(in, Report.TOTAL);
+    }
+
+    /**
+     * 合并直方图日志中指定事务稳定阶段所有周期的直方图
+     */
+    public static Histogram mergeHistogramLog(InputStream in, String name) throws IOException {
+        final Histogram total = new Histogram();
+        final HistogramLogReader reader = new HistogramLogReader(in);
+        Report report;
+        while ((report = reader.next()) != null) {
+            if (report.phase() == Phase.STEADY && report.name().equals(name)) {
+                total.add(report.histogram());
+            }
+        }
+        return total;
+    }
+
+    private static FileChannel open(Path path) throws IOException {
+        return FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1000000d;
+    }
+
+    /**
+     * 包装调用者提供的流, 关闭时只flush, 流由调用者关闭, 例如{@code System.out}
+     */
+    static final class StreamChannel implements WritableByteChannel {
+
+        final OutputStream out;
+        final WritableByteChannel channel;
+
+        StreamChannel(OutputStream out) {
+            this.out = out;
+            this.channel = Channels.newChannel(out);
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            return channel.write(src);
+        }
+
+        @Override
+        public boolean isOpen() {
+            return channel.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.flush();
+        }
+    }
+
+    /**
+     * 先把周期结果编码到缓冲区, 再一次性写入channel
+     */
+    static abstract class ChannelSink implements ReportSink {
+
+        final WritableByteChannel channel;
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+        ChannelSink(WritableByteChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public final void write(Report report) throws IOException {
+            encode(report);
+            for (Report r : report.transactions()) {
+                encode(r);
+            }
+            flush();
+        }
+
+        abstract void encode(Report report) throws IOException;
+
+        final void writeText(CharSequence text) throws IOException {
+            final byte[] bytes = text.toString().getBytes(StandardCharsets.UTF_8);
+            ensureWritable(bytes.length);
+            buffer.put(bytes);
+        }
+
+        final void ensureWritable(int bytes) throws IOException {
+            if (buffer.remaining() < bytes) {
+                flush();
+                if (buffer.capacity() < bytes) {
+                    buffer = ByteBuffer.allocate(bytes);
+                }
+            }
+        }
+
+        final void flush() throws IOException {
+            // 通过Buffer调用flip/clear, JDK 9+编译时不会链接到1.8上不存在的协变重载
+            ((Buffer) buffer).flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            ((Buffer) buffer).clear();
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+            channel.close();
+        }
+    }
+
+    /**
+     * 多事务时每个周期先输出汇总行, 再逐个输出事务行, 以name列区分
+     */
+    static final class CsvSink extends ChannelSink {
+
+        boolean headerWritten;
+
+        CsvSink(WritableByteChannel channel) {
+            super(channel);
+        }
+
+        @Override
+        void encode(Report r) throws IOException {
+            final StringBuilder sb = new StringBuilder(256);
+            if (!headerWritten) {
+                sb.append("timestamp,name,phase,interval_ms,tps,success,failure,error,total_success,total_failure,total_error,"
+                        + "total_late,total_dropped,p50_ms,p90_ms,p99_ms,p99.9_ms,max_ms");
+                sb.append(r.resourcesMeasured() ? ",cpu_us_per_tx,alloc_bytes_per_tx,gc_count,gc_ms\n" : "\n");
+                headerWritten = true;
+            }
+            sb.append(r.timestamp()).append(',');
+            appendCsvField(sb, r.name());
+            sb.append(',').append(r.phase().label()).append(',')
+                    .append(String.format(Locale.ROOT, "%.3f,%.3f", millis(r.intervalNanos()), r.tps())).append(',')
+                    .append(r.success()).append(',').append(r.failure()).append(',').append(r.error()).append(',')
+                    .append(r.totalSuccess()).append(',').append(r.totalFailure()).append(',')
+                    .append(r.totalError()).append(',').append(r.totalLate()).append(',')
+                    .append(r.totalDropped());
+            final Histogram h = r.histogram();
+            for (double p : PERCENTILES) {
+                sb.append(String.format(Locale.ROOT, ",%.3f", millis(h.getValueAtPercentile(p))));
+            }
+            sb.append(String.format(Locale.ROOT, ",%.3f", millis(h.getMax())));
+            if (r.resourcesMeasured()) {
+                sb.append(String.format(Locale.ROOT, ",%.3f,%.1f,%d,%d", r.cpuMicrosPerTransaction(),
+                        r.allocatedBytesPerTransaction(), r.gcCount(), r.gcMillis()));
+            }
+            writeText(sb.append('\n'));
+        }
+
+        /**
+         * 按RFC 4180, 含逗号、双引号或换行的字段用双引号包围, 字段内的双引号写两次
+         */
+        private static void appendCsvField(StringBuilder sb, String s) {
+            boolean quote = false;
+            for (int i = 0; i < s.length() && !quote; i++) {
+                final char c = s.charAt(i);
+                quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+            }
+            if (!quote) {
+                sb.append(s);
+                return;
+            }
+            sb.append('"');
+            for (int i = 0; i < s.length(); i++) {
+                final char c = s.charAt(i);
+                if (c == '"') {
+                    sb.append('"');
+                }
+                sb.append(c);
+            }
+            sb.append('"');
+        }
+    }
+
+    static final class JsonLinesSink extends ChannelSink {
+
+        JsonLinesSink(WritableByteChannel channel) {
+            super(channel);
+        }
+
+        @Override
+        void encode(Report r) throws IOException {
+            final StringBuilder sb = new StringBuilder(256);
+            sb.append("{\"timestamp\":").append(r.timestamp()).append(",\"name\":\"");
+            appendJsonString(sb, r.name());
+            sb.append("\",\"phase\":\"").append(r.phase().label()).append('"')
+                    .append(String.format(Locale.ROOT, ",\"intervalMs\":%.3f,\"tps\":%.3f", millis(r.intervalNanos()),
+                            r.tps()))
+                    .append(",\"success\":").append(r.success()).append(",\"failure\":").append(r.failure())
+                    .append(",\"error\":").append(r.error()).append(",\"totalSuccess\":").append(r.totalSuccess())
+                    .append(",\"totalFailure\":").append(r.totalFailure()).append(",\"totalError\":")
+                    .append(r.totalError()).append(",\"totalLate\":").append(r.totalLate())
+                    .append(",\"totalDropped\":").append(r.totalDropped()).append(",\"latencyMs\":{");
+            final Histogram h = r.histogram();
+            for (double p : PERCENTILES) {
+                sb.append(String.format(Locale.ROOT, "\"p%s\":%.3f,", p == (long) p ? String.valueOf((long) p)
+                        : String.valueOf(p), millis(h.getValueAtPercentile(p))));
+            }
+            sb.append(String.format(Locale.ROOT, "\"max\":%.3f}", millis(h.getMax())));
+            if (r.resourcesMeasured()) {
+                sb.append(String.format(Locale.ROOT, ",\"cpuUsPerTx\":%.3f,\"allocBytesPerTx\":%.1f,\"gcCount\":%d,"
+                        + "\"gcMs\":%d", r.cpuMicrosPerTransaction(), r.allocatedBytesPerTransaction(), r.gcCount(),
+                        r.gcMillis()));
+            }
+            writeText(sb.append("}\n"));
+        }
+
+        private static void appendJsonString(StringBuilder sb, String s) {
+            for (int i = 0; i < s.length(); i++) {
+                final char c = s.charAt(i);
+                if (c == '"' || c == '\\') {
+                    sb.append('\\').append(c);
+                } else if (c < 0x20) {
+                    sb.append(String.format("\\u%04x", (int) c));
+                } else {
+                    sb.append(c);
+                }
+            }
+        }
+    }
+
+    /**
+     * 格式: 文件头为magic(int)和version(int), 之后每个周期一条记录, 所有整数均为无符号LEB128变长编码:
+     * 事务名称(UTF-8字节数 + 字节), 阶段序号, timestamp, intervalNanos, success, failure, error, late, dropped, 非零桶个数n,
+     * 以及n组(桶序号增量, 计数). 多事务时每个周期先写汇总记录, 再逐个写事务记录
+     */
+    static final class HistogramLogSink extends ChannelSink {
+
+        // 单条记录的最大长度
+        static final int MAX_RECORD_SIZE = 10 * 8 + Histogram.LENGTH * (5 + 10);
+
+        final Map<String, byte[]> names = new HashMap<>();
+
+        boolean headerWritten;
+
+        HistogramLogSink(WritableByteChannel channel) {
+            super(channel);
+        }
+
+        @Override
+        void encode(Report r) throws IOException {
+            final byte[] name = names.computeIfAbsent(r.name(), n -> n.getBytes(StandardCharsets.UTF_8));
+            ensureWritable(MAX_RECORD_SIZE + 5 + name.length);
+            final ByteBuffer buf = buffer;
+            if (!headerWritten) {
+                buf.putInt(HISTOGRAM_LOG_MAGIC).putInt(HISTOGRAM_LOG_VERSION);
+                headerWritten = true;
+            }
+            putVarLong(buf, name.length);
+            buf.put(name);
+            putVarLong(buf, r.phase().ordinal());
+            encodeRecord(r, buf);
+        }
+    }
+
+    static void encodeRecord(Report r, ByteBuffer buf) {
+        putVarLong(buf, r.timestamp());
+        putVarLong(buf, r.intervalNanos());
+        putVarLong(buf, r.success());
+        putVarLong(buf, r.failure());
+        putVarLong(buf, r.error());
+        putVarLong(buf, r.totalLate());
+        putVarLong(buf, r.totalDropped());
+
+        final long[] counts = r.histogram().counts;
+        int nonZero = 0;
+        for (long c : counts) {
+            if (c != 0) {
+                nonZero++;
+            }
+        }
+        putVarLong(buf, nonZero);
+        int last = 0;
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] != 0) {
+                putVarLong(buf, i - last);
+                putVarLong(buf, counts[i]);
+                last = i;
+            }
+        }
+    }
+
+    static void putVarLong(ByteBuffer buf, long v) {
+        while ((v & ~0x7FL) != 0) {
+            buf.put((byte) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        buf.put((byte) v);
+    }
+
+    /**
+     * 直方图日志读取器, {@link #next()}返回的{@link Report}中周期直方图为独立副本, 累计直方图为读取到该周期为止同名记录的合并结果,
+     * 成功/失败/错误累计值同样由读取到的周期按名称累加得到, 稳定阶段的累计结果另行统计. 事务记录逐条返回, 不挂在汇总记录的{@link Report#transactions()}下
+     */
+    public static final class HistogramLogReader {
+
+        static final Phase[] PHASES = Phase.values();
+
+        final ReadableByteChannel channel;
+        final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        final Map<String, Totals> totals = new HashMap<>();
+        boolean headerRead;
+
+        public HistogramLogReader(InputStream in) {
+            this.channel = Channels.newChannel(in);
+            ((Buffer) buffer).flip();
+        }
+
+        /**
+         * @return 下一个周期, 没有更多记录时返回null
+         */
+        public Report next() throws IOException {
+            if (!headerRead) {
+                if (!fill(8)) {
+                    return null;
+                }
+                if (buffer.getInt() != HISTOGRAM_LOG_MAGIC) {
+                    throw new IOException("not a histogram log");
+                }
+                int version = buffer.getInt();
+                if (version != HISTOGRAM_LOG_VERSION) {
+                    throw new IOException("unsupported histogram log version: " + version);
+                }
+                headerRead = true;
+            }
+            if (!fill(1)) {
+                return null;
+            }
+
+            final int nameLength = (int) getVarLong();
+            if (nameLength < 0 || nameLength > buffer.capacity()) {
+                throw new IOException("corrupted histogram log");
+            }
+            if (!fill(nameLength)) {
+                throw new EOFException("truncated histogram log");
+            }
+            final byte[] nameBytes = new byte[nameLength];
+            buffer.get(nameBytes);
+            final String name = new String(nameBytes, StandardCharsets.UTF_8);
+            final long phaseOrdinal = getVarLong();
+            if (phaseOrdinal >= PHASES.length) {
+                throw new IOException("corrupted histogram log");
+            }
+            final Phase phase = PHASES[(int) phaseOrdinal];
+            final long timestamp = getVarLong();
+            final long intervalNanos = getVarLong();
+            final long success = getVarLong();
+            final long failure = getVarLong();
+            final long error = getVarLong();
+            final long late = getVarLong();
+            final long dropped = getVarLong();
+            final Histogram h = new Histogram();
+            final long nonZero = getVarLong();
+            int index = 0;
+            for (long i = 0; i < nonZero; i++) {
+                index += (int) getVarLong();
+                if (index < 0 || index >= Histogram.LENGTH) {
+                    throw new IOException("corrupted histogram log");
+                }
+                long count = getVarLong();
+                h.counts[index] += count;
+                h.totalCount += count;
+            }
+            final Totals t = totals.computeIfAbsent(name, n -> new Totals());
+            t.cumulative.add(h);
+            t.success += success;
+            t.failure += failure;
+            t.error += error;
+            if (phase == Phase.STEADY) {
+                t.measured.add(h);
+                t.measuredSuccess += success;
+                t.measuredFailure += failure;
+                t.measuredError += error;
+                t.measuredNanos += intervalNanos;
+            }
+            final Report report = new Report(name, phase, timestamp, intervalNanos, success, failure, error,
+                    t.success, t.failure, t.error, late, dropped, h, t.cumulative.copy());
+            report.measured(t.measured.copy(), t.measuredSuccess, t.measuredFailure, t.measuredError,
+                    t.measuredNanos);
+            return report;
+        }
+
+        private long getVarLong() throws IOException {
+            long v = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                if (!fill(1)) {
+                    throw new EOFException("truncated histogram log");
+                }
+                final byte b = buffer.get();
+                v |= (long) (b & 0x7F) << shift;
+                if (b >= 0) {
+                    return v;
+                }
+            }
+            throw new IOException("corrupted histogram log");
+        }
+
+        // 保证缓冲区至少有n个字节可读, 到达流末尾时返回false
+        private boolean fill(int n) throws IOException {
+            if (buffer.remaining() >= n) {
+                return true;
+            }
+            buffer.compact();
+            try {
+                while (buffer.position() < n) {
+                    if (channel.read(buffer) < 0) {
+                        if (buffer.position() == 0) {
+                            return false;
+                        }
+                        if (buffer.position() < n) {
+                            throw new EOFException("truncated histogram log");
+                        }
+                    }
+                }
+            } finally {
+                ((Buffer) buffer).flip();
+            }
+            return true;
+        }
+
+        static final class Totals {
+            final Histogram cumulative = new Histogram();
+            final Histogram measured = new Histogram();
+            long success, failure, error;
+            long measuredSuccess, measuredFailure, measuredError, measuredNanos;
+        }
+    }
+
+    private ReportSinks() {
+    }
+}
@@ -0,0 +1,244 @@
+package winflex.util;
+
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import winflex.util.LoadRunner.Report;
+import winflex.util.LoadRunner.ReportListener;
+
+/**
+ * 饱和点搜索配置. 从最小负载开始成倍提高并发数或到达率, 每级负载先预热若干汇报周期再测量若干周期,
+ * 当p99超过上限或吞吐增长低于线性增长的一定比例时视为越过拐点, 之后在最后一个正常负载与拐点之间二分查找
+ *
+ * <pre>
+ * LoadRunner lr = LoadRunner.builder()
+ * .search(SaturationSearch.concurrency(1, 1024).p99Below(20, TimeUnit.MILLISECONDS))
+ * .action(() -> return action())
+ * .build();
+ * lr.start().join();
+ * SaturationSearch.Result point = lr.saturationPoint();
+ * </pre>
+ *
+ * @author winflex
+ */
+public final class SaturationSearch {
+
+    /**
+     * 在线程数上搜索, 负载为活跃线程数
+     */
+    public static SaturationSearch concurrency(int min, int max) {
+        return new SaturationSearch(false, min, max);
+    }
+
+    /**
+     * 在到达率上搜索(开环模式), 负载为每秒事务数, 需同时通过threads指定最大并发数
+     */
+    public static SaturationSearch rate(int min, int max) {
+        return new SaturationSearch(true, min, max);
+    }
+
+    final boolean rate;
+    final int min;
+    final int max;
+    long p99BoundNanos = Long.MAX_VALUE;
+    double efficiency = 0.5;
+    int settleIntervals = 1;
+    int measureIntervals = 3;
+    double resolution = 0.02;
+
+    private SaturationSearch(boolean rate, int min, int max) {
+        if (min <= 0 || max < min) {
+            throw new IllegalArgumentException("expected: 0 < min <= max");
+        }
+        this.rate = rate;
+        this.min = min;
+        this.max = max;
+    }
+
+    /**
+     * p99延迟上限, 超过即视为越过拐点
+     */
+    public SaturationSearch p99Below(long time, TimeUnit unit) {
+        this.p99BoundNanos = unit.toNanos(time);
+        return this;
+    }
+
+    /**
+     * 负载提高时吞吐至少应达到线性增长的efficiency倍, 否则视为吞吐不再增长, 默认0.5
+     */
+    public SaturationSearch efficiency(double efficiency) {
+        if (efficiency <= 0 || efficiency > 1) {
+            throw new IllegalArgumentException("efficiency: " + efficiency + " (expected: 0 < efficiency <= 1)");
+        }
+        this.efficiency = efficiency;
+        return this;
+    }
+
+    /**
+     * 每级负载丢弃settle个汇报周期后再测量measure个周期, 默认1和3
+     */
+    public SaturationSearch intervals(int settle, int measure) {
+        if (settle < 0 || measure <= 0) {
+            throw new IllegalArgumentException("expected: settle >= 0, measure > 0");
+        }
+        this.settleIntervals = settle;
+        this.measureIntervals = measure;
+        return this;
+    }
+
+    /**
+     * 二分查找的相对精度, 默认0.02
+     */
+    public SaturationSearch resolution(double resolution) {
+        if (resolution <= 0) {
+            throw new IllegalArgumentException("resolution must be positive");
+        }
+        this.resolution = resolution;
+        return this;
+    }
+
+    LoadProfile.Variable newProfile() {
+        return new LoadProfile.Variable(min, max);
+    }
+
+    /**
+     * 搜索结果
+     */
+    public static final class Result {
+
+        final int load;
+        final double tps;
+        final long p99Nanos;
+        final boolean saturated;
+
+        Result(int load, double tps, long p99Nanos, boolean saturated) {
+            this.load = load;
+            this.tps = tps;
+            this.p99Nanos = p99Nanos;
+            this.saturated = saturated;
+        }
+
+        /**
+         * 拐点前的最大负载(线程数或每秒事务数), 最小负载即已超限时为0
+         */
+        public int load() {
+            return load;
+        }
+
+        public double tps() {
+            return tps;
+        }
+
+        public long p99Nanos() {
+            return p99Nanos;
+        }
+
+        /**
+         * 是否找到了拐点, false表示达到最大负载仍未饱和
+         */
+        public boolean saturated() {
+            return saturated;
+        }
+
+        @Override
+        public String toString() {
+            return "load = " + load + ", tps = " + String.format("%.1f", tps) + ", p99 = "
+                    + String.format("%.3fms", p99Nanos / 1000000d) + (saturated ? "" : " (not saturated)");
+        }
+    }
+
+    /**
+     * 在汇报线程上驱动搜索
+     */
+    static final class Searcher implements ReportListener {
+
+        final SaturationSearch search;
+        final LoadRunner runner;
+        final LoadRunner.Reporter reporter;
+        final LoadProfile.Variable profile;
+
+        final Histogram window = new Histogram();
+        long windowSuccess;
+        long windowNanos;
+        int ticks;
+
+        int level;
+        int good; // 最后一个正常负载, 0表示还没有
+        double goodTps;
+        long goodP99;
+        int bad = -1; // 拐点负载, -1表示还没有
+
+        volatile Result result;
+
+        Searcher(SaturationSearch search, LoadRunner runner, LoadRunner.Reporter reporter) {
+            this.search = search;
+            this.runner = runner;
+            this.reporter = reporter;
+            this.profile = (LoadProfile.Variable) (search.rate ? reporter.config.rateProfile
+                    : reporter.config.profile);
+            this.level = search.min;
+        }
+
+        @Override
+        public void onReport(Report report) {
+            if (result != null || ++ticks <= search.settleIntervals) {
+                return;
+            }
+            window.add(report.histogram());
+            windowSuccess += report.success();
+            windowNanos += report.intervalNanos();
+            if (ticks < search.settleIntervals + search.measureIntervals) {
+                return;
+            }
+
+            final double tps = windowNanos > 0 ? windowSuccess * 1e9 / windowNanos : 0;
+            final long p99 = window.getValueAtPercentile(99);
+            final boolean ok = p99 <= search.p99BoundNanos
+                    && (good == 0 ? tps > 0 : (tps - goodTps) / goodTps >= search.efficiency * (level - good) / good);
+            reporter.out.printf("[%s] search: load = %d, tps = %.1f, p99 = %.3fms, %s\n",
+                    LoadRunner.format.format(new Date()), level, tps, p99 / 1000000d, ok ? "ok" : "knee");
+
+            if (ok) {
+                good = level;
+                goodTps = tps;
+                goodP99 = p99;
+            } else {
+                bad = level;
+            }
+
+            int next;
+            if (bad < 0) {
+                next = level >= search.max ? -1 : (int) Math.min((long) level * 2, search.max);
+            } else if (good == 0 || bad - good <= Math.max(1, good * search.resolution)) {
+                next = -1;
+            } else {
+                next = good + (bad - good) / 2;
+            }
+
+            if (next < 0) {
+                finish();
+            } else {
+                level = next;
+                profile.value = next;
+                window.reset();
+                windowSuccess = 0;
+                windowNanos = 0;
+                ticks = 0;
+            }
+        }
+
+        @Override
+        public void onFinish(Report report) {
+            Result result = this.result;
+            if (result == null) {
+                this.result = result = new Result(good, goodTps, goodP99, bad >= 0);
+            }
+            reporter.out.printf("[%s] summary: saturation point: %s\n", LoadRunner.format.format(new Date()), result);
+        }
+
+        private void finish() {
+            result = new Result(good, goodTps, goodP99, bad >= 0);
+            runner.stop();
+        }
+    }
+}
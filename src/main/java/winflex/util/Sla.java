@@ -0,0 +1,226 @@
+package winflex.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+import winflex.util.LoadRunner.Phase;
+import winflex.util.LoadRunner.Report;
+import winflex.util.LoadRunner.ReportListener;
+
+/**
+ * 压测通过条件. 每个汇报周期检查一次, 预热与冷却阶段不检查, 任一条件被打破即提前结束运行,
+ * 运行结束后再用稳定阶段的累计结果检查一次, 结果由{@link LoadRunner#result()}返回
+ *
+ * <pre>
+ * LoadRunner lr = LoadRunner.builder()
+ * .warmup(30000)
+ * .sla(Sla.p99Below(20, TimeUnit.MILLISECONDS))
+ * .sla(Sla.errorRateBelow(0.001))
+ * .sla(Sla.tpsAtLeast(10000))
+ * ...
+ * .build();
+ * lr.start().join();
+ * if (!lr.result().passed()) {
+ *     System.exit(1);
+ * }
+ * </pre>
+ *
+ * @author winflex
+ */
+public abstract class Sla {
+
+    /**
+     * 稳定阶段累计延迟的percentile百分位低于time
+     */
+    public static Sla percentileBelow(double percentile, long time, TimeUnit unit) {
+        if (percentile <= 0 || percentile > 100) {
+            throw new IllegalArgumentException("percentile: " + percentile + " (expected: 0 < percentile <= 100)");
+        }
+        return new PercentileBelow(percentile, unit.toNanos(time));
+    }
+
+    public static Sla p99Below(long time, TimeUnit unit) {
+        return percentileBelow(99, time, unit);
+    }
+
+    /**
+     * 稳定阶段累计的失败与错误事务占比低于ratio, 如0.001即0.1%
+     */
+    public static Sla errorRateBelow(double ratio) {
+        if (ratio <= 0 || ratio > 1) {
+            throw new IllegalArgumentException("ratio: " + ratio + " (expected: 0 < ratio <= 1)");
+        }
+        return new ErrorRateBelow(ratio);
+    }
+
+    /**
+     * 稳定阶段每个汇报周期的每秒成功事务数不低于tps
+     */
+    public static Sla tpsAtLeast(double tps) {
+        if (tps <= 0) {
+            throw new IllegalArgumentException("tps must be positive");
+        }
+        return new TpsAtLeast(tps);
+    }
+
+    /**
+     * @param last 是否为运行结束后的最终检查
+     * @return 违反条件时返回说明, 否则返回null
+     */
+    abstract String check(Report report, boolean last);
+
+    static String millis(long nanos) {
+        return String.format(Locale.ROOT, "%.3fms", nanos / 1000000d);
+    }
+
+    static final class PercentileBelow extends Sla {
+
+        final double percentile;
+        final long boundNanos;
+
+        PercentileBelow(double percentile, long boundNanos) {
+            this.percentile = percentile;
+            this.boundNanos = boundNanos;
+        }
+
+        @Override
+        String check(Report report, boolean last) {
+            final Histogram h = report.measuredHistogram();
+            if (h == null || h.getTotalCount() == 0) {
+                return null;
+            }
+            final long value = h.getValueAtPercentile(percentile);
+            return value < boundNanos ? null : "p" + format(percentile) + " = " + millis(value);
+        }
+
+        @Override
+        public String toString() {
+            return "p" + format(percentile) + " < " + millis(boundNanos);
+        }
+
+        private static String format(double percentile) {
+            return percentile == (long) percentile ? String.valueOf((long) percentile) : String.valueOf(percentile);
+        }
+    }
+
+    static final class ErrorRateBelow extends Sla {
+
+        final double ratio;
+        // 运行中至少累计这么多事务才检查, 避免开始时一个错误就判定失败
+        final long minSamples;
+
+        ErrorRateBelow(double ratio) {
+            this.ratio = ratio;
+            this.minSamples = (long) Math.ceil(1 / ratio);
+        }
+
+        @Override
+        String check(Report report, boolean last) {
+            final long errors = report.measuredFailure() + report.measuredError();
+            final long total = report.measuredSuccess() + errors;
+            if (total == 0 || (!last && total < minSamples)) {
+                return null;
+            }
+            final double rate = (double) errors / total;
+            return rate < ratio ? null : String.format(Locale.ROOT, "error rate = %.4f%%", rate * 100);
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "error rate < %.4f%%", ratio * 100);
+        }
+    }
+
+    static final class TpsAtLeast extends Sla {
+
+        final double tps;
+
+        TpsAtLeast(double tps) {
+            this.tps = tps;
+        }
+
+        @Override
+        String check(Report report, boolean last) {
+            if (last) {
+                // 最后一个周期通常不完整, 改用稳定阶段的平均值
+                if (report.measuredNanos() == 0) {
+                    return null;
+                }
+                final double measured = report.measuredTps();
+                return measured >= tps ? null : String.format(Locale.ROOT, "average tps = %.1f", measured);
+            }
+            final double current = report.tps();
+            return current >= tps ? null : String.format(Locale.ROOT, "tps = %.1f", current);
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "tps >= %.1f", tps);
+        }
+    }
+
+    /**
+     * 在汇报线程上检查通过条件
+     */
+    static final class Checker implements ReportListener {
+
+        final List<Sla> rules;
+        final LoadRunner runner;
+        final LoadRunner.Reporter reporter;
+        final List<String> violations = new ArrayList<>();
+        boolean skipFirst;
+
+        volatile LoadRunner.Result result;
+
+        Checker(List<Sla> rules, LoadRunner runner, LoadRunner.Reporter reporter) {
+            this.rules = rules;
+            this.runner = runner;
+            this.reporter = reporter;
+            // 没有预热时第一个周期包含线程启动, 不据此提前结束
+            this.skipFirst = reporter.warmupEndNanos == 0;
+        }
+
+        @Override
+        public void onReport(Report report) {
+            // 停止后的最后一个周期通常不完整, 留到onFinish检查
+            if (!violations.isEmpty() || report.phase() != Phase.STEADY || reporter.stopped) {
+                return;
+            }
+            if (skipFirst) {
+                skipFirst = false;
+                return;
+            }
+            for (Sla rule : rules) {
+                final String violation = rule.check(report, false);
+                if (violation != null) {
+                    violations.add(rule + " violated: " + violation);
+                }
+            }
+            if (!violations.isEmpty()) {
+                for (String violation : violations) {
+                    reporter.out.printf("[%s] sla: %s\n", LoadRunner.format.format(new Date()), violation);
+                }
+                runner.stop();
+            }
+        }
+
+        @Override
+        public void onFinish(Report report) {
+            if (violations.isEmpty()) {
+                for (Sla rule : rules) {
+                    final String violation = rule.check(report, true);
+                    if (violation != null) {
+                        violations.add(rule + " violated: " + violation);
+                    }
+                }
+            }
+            result = new LoadRunner.Result(violations.isEmpty(), Collections.unmodifiableList(violations), report);
+            reporter.out.printf("[%s] summary: sla %s\n", LoadRunner.format.format(new Date()),
+                    result.passed() ? "passed" : "failed: " + String.join("; ", violations));
+        }
+    }
+}
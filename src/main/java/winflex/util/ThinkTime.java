@@ -0,0 +1,145 @@
+package winflex.util;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 思考时间分布, 模拟用户两次操作之间的停顿
+ *
+ * @see LoadRunner.LoadRunnberBuilder#thinkTime(ThinkTime)
+ * @author winflex
+ */
+public abstract class ThinkTime implements Serializable {
+
+    private static final long serialVersionUID = 6025473950123347216L;
+
+    /**
+     * 固定思考时间
+     */
+    public static ThinkTime fixed(long time, TimeUnit unit) {
+        return new Fixed(unit.toNanos(time));
+    }
+
+    /**
+     * [min, max)内均匀分布
+     */
+    public static ThinkTime uniform(long min, long max, TimeUnit unit) {
+        return new Uniform(unit.toNanos(min), unit.toNanos(max));
+    }
+
+    /**
+     * 均值为mean的指数分布, 对应泊松到达的用户行为
+     */
+    public static ThinkTime exponential(long mean, TimeUnit unit) {
+        return new Exponential(unit.toNanos(mean));
+    }
+
+    /**
+     * @return 下一次思考时间, 纳秒
+     */
+    public abstract long nextNanos(ThreadLocalRandom random);
+
+    // 分布式压测时思考时间的编码, 只接受以下已知类型, 不使用Java序列化
+    static final byte NONE = 0, FIXED = 1, UNIFORM = 2, EXPONENTIAL = 3;
+
+    static void write(ThinkTime t, DataOutput out) throws IOException {
+        if (t == null) {
+            out.writeByte(NONE);
+        } else if (t instanceof Fixed) {
+            out.writeByte(FIXED);
+            out.writeLong(((Fixed) t).nanos);
+        } else if (t instanceof Uniform) {
+            out.writeByte(UNIFORM);
+            out.writeLong(((Uniform) t).minNanos);
+            out.writeLong(((Uniform) t).maxNanos);
+        } else if (t instanceof Exponential) {
+            out.writeByte(EXPONENTIAL);
+            out.writeLong((long) ((Exponential) t).meanNanos);
+        } else {
+            throw new IllegalArgumentException("unsupported think time: " + t.getClass().getName());
+        }
+    }
+
+    /**
+     * 读取{@link #write(ThinkTime, DataOutput)}写出的思考时间, 取值不合法时抛出{@link IllegalArgumentException}
+     */
+    static ThinkTime read(DataInput in) throws IOException {
+        final byte type = in.readByte();
+        switch (type) {
+        case NONE:
+            return null;
+        case FIXED:
+            return new Fixed(in.readLong());
+        case UNIFORM:
+            return new Uniform(in.readLong(), in.readLong());
+        case EXPONENTIAL:
+            return new Exponential(in.readLong());
+        default:
+            throw new IllegalArgumentException("unknown think time type: " + type);
+        }
+    }
+
+    static final class Fixed extends ThinkTime {
+
+        private static final long serialVersionUID = -2718301839126474580L;
+
+        final long nanos;
+
+        Fixed(long nanos) {
+            if (nanos < 0) {
+                throw new IllegalArgumentException("think time must not be negative");
+            }
+            this.nanos = nanos;
+        }
+
+        @Override
+        public long nextNanos(ThreadLocalRandom random) {
+            return nanos;
+        }
+    }
+
+    static final class Uniform extends ThinkTime {
+
+        private static final long serialVersionUID = 3301937004912786025L;
+
+        final long minNanos;
+        final long maxNanos;
+
+        Uniform(long minNanos, long maxNanos) {
+            if (minNanos < 0 || maxNanos <= minNanos) {
+                throw new IllegalArgumentException("expected: 0 <= min < max");
+            }
+            this.minNanos = minNanos;
+            this.maxNanos = maxNanos;
+        }
+
+        @Override
+        public long nextNanos(ThreadLocalRandom random) {
+            return random.nextLong(minNanos, maxNanos);
+        }
+    }
+
+    static final class Exponential extends ThinkTime {
+
+        private static final long serialVersionUID = -8157762215880731290L;
+
+        final double meanNanos;
+
+        Exponential(long meanNanos) {
+            if (meanNanos <= 0) {
+                throw new IllegalArgumentException("mean must be positive");
+            }
+            this.meanNanos = meanNanos;
+        }
+
+        @Override
+        public long nextNanos(ThreadLocalRandom random) {
+            // 1 - nextDouble()取值(0, 1], 避免log(0)
+            return (long) (-Math.log(1 - random.nextDouble()) * meanNanos);
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package winflex.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 回放用的请求日志, 每行一个请求, 第一列为整数时间戳, 逗号后为请求内容, 空行与#开头的行忽略
+ * <p>
+ * 文件边读边回放, 任一时刻只在内存中保留一个读缓冲区, 因此可以回放任意大小的日志.
+ * 每个请求的计划发送时间为其时间戳相对第一个请求的偏移除以回放速度, 时间戳倒退的请求紧接上一个请求发送
+ *
+ * <pre>
+ * Trace trace = Trace.csv(Paths.get("access.log"), TimeUnit.MILLISECONDS).speed(2);
+ * LoadRunner lr = LoadRunner.builder()
+ * .threads(256)
+ * .millis(3600000)
+ * .replay(trace, record -> send(record))
+ * ...
+ * </pre>
+ *
+ * @see LoadRunner.LoadRunnberBuilder#replay(Trace, Feeder.Action)
+ * @author winflex
+ */
+public final class Trace implements Closeable {
+
+    static final long END = -1;
+
+    /**
+     * @param unit 时间戳的单位
+     */
+    public static Trace csv(Path path, TimeUnit unit) throws IOException {
+        return new Trace(path, unit);
+    }
+
+    final FileChannel channel;
+    final TimeUnit unit;
+    final ByteBuffer buffer = ByteBuffer.allocate(Feeder.MAX_RECORD_SIZE);
+    final ThreadLocal<ByteBuffer> records = ThreadLocal.withInitial(() -> ByteBuffer.allocate(256));
+    double speed = 1;
+
+    // 以下字段由this保护
+    long firstTimestamp;
+    long lastOffset = END;
+    long line;
+    boolean eof;
+
+    private Trace(Path path, TimeUnit unit) throws IOException {
+        this.channel = FileChannel.open(path, StandardOpenOption.READ);
+        this.unit = unit;
+        // 通过Buffer调用position/limit/flip/clear, JDK 9+编译时不会链接到1.8上不存在的协变重载
+        ((Buffer) buffer).limit(0);
+    }
+
+    /**
+     * 回放速度, 2表示以两倍速回放, 默认1
+     */
+    public Trace speed(double speed) {
+        if (!(speed > 0)) {
+            throw new IllegalArgumentException("speed must be positive");
+        }
+        this.speed = speed;
+        return this;
+    }
+
+    /**
+     * 读取下一个请求到当前线程的缓冲区
+     *
+     * @return 相对第一个请求的计划发送偏移纳秒数, 日志读完时返回{@link #END}
+     */
+    synchronized long next() throws IOException {
+        for (;;) {
+            final int end = nextLine();
+            if (end < 0) {
+                return END;
+            }
+            line++;
+            final int start = buffer.position();
+            ((Buffer) buffer).position(end + 1);
+            int limit = end;
+            if (limit > start && buffer.get(limit - 1) == '\r') {
+                limit--;
+            }
+            if (limit == start || buffer.get(start) == '#') {
+                continue;
+            }
+
+            long timestamp = 0;
+            int i = start;
+            for (; i < limit && buffer.get(i) != ','; i++) {
+                final int digit = buffer.get(i) - '0';
+                if (digit < 0 || digit > 9) {
+                    throw new IOException("invalid timestamp at line " + line);
+                }
+                timestamp = timestamp * 10 + digit;
+            }
+            if (i == start) {
+                throw new IOException("invalid timestamp at line " + line);
+            }
+            copyRecord(i < limit ? i + 1 : limit, limit);
+
+            if (lastOffset == END) {
+                firstTimestamp = timestamp;
+                return lastOffset = 0;
+            }
+            final long offset = (long) (unit.toNanos(timestamp - firstTimestamp) / speed);
+            return lastOffset = Math.max(offset, lastOffset);
+        }
+    }
+
+    /**
+     * 当前线程最近一次{@link #next()}读到的请求内容
+     */
+    ByteBuffer record() {
+        return records.get();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * 保证缓冲区中从position开始有一整行, 返回行尾换行符的下标, 没有更多行时返回-1
+     */
+    private int nextLine() throws IOException {
+        int from = buffer.position();
+        for (;;) {
+            for (int i = from; i < buffer.limit(); i++) {
+                if (buffer.get(i) == '\n') {
+                    return i;
+                }
+            }
+            if (eof) {
+                if (buffer.hasRemaining()) {
+                    // 最后一行没有换行符, 补一个虚拟的行尾
+                    if (buffer.limit() == buffer.capacity()) {
+                        buffer.compact();
+                        ((Buffer) buffer).flip();
+                        if (buffer.limit() == buffer.capacity()) {
+                            throw new IOException("line " + (line + 1) + " is longer than " + buffer.capacity() + " bytes");
+                        }
+                    }
+                    final int end = buffer.limit();
+                    ((Buffer) buffer).limit(end + 1);
+                    buffer.put(end, (byte) '\n');
+                    return end;
+                }
+                return -1;
+            }
+            if (buffer.position() == 0 && buffer.limit() == buffer.capacity()) {
+                throw new IOException("line " + (line + 1) + " is longer than " + buffer.capacity() + " bytes");
+            }
+            from = buffer.remaining();
+            buffer.compact();
+            eof = channel.read(buffer) < 0;
+            ((Buffer) buffer).flip();
+        }
+    }
+
+    private void copyRecord(int start, int end) {
+        ByteBuffer record = records.get();
+        final int length = end - start;
+        if (record.capacity() < length) {
+            record = ByteBuffer.allocate(Math.max(length, record.capacity() << 1));
+            records.set(record);
+        }
+        ((Buffer) record).clear();
+        final ByteBuffer source = buffer.duplicate();
+        ((Buffer) source).limit(end);
+        ((Buffer) source).position(start);
+        record.put(source);
+        ((Buffer) record).flip();
+    }
+}
@@ -2,8 +2,11 @@ package winflex.util.concurrent;
 
 import java.time.Duration;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
@@ -14,6 +17,8 @@ import winflex.util.NamedThreadFactory;
 /**
  * 提供一系列创建{@link CompletableFuture}的静态方法, 这些方法都带有timeout超时参数,
  * 通过这些静态方法创建的{@link CompletableFuture}将会在指定timeout时以{@link TimeoutException}异常结束
+ * <p>
+ * 另外提供{@link IFuture}与{@link CompletableFuture}之间的互相转换, 见{@link CompletablePromise}
  * 
  * 
  * @author winflex
@@ -51,6 +56,68 @@ public final class CompletableFutures {
 		return scheduleTimeout(CompletableFuture.anyOf(cfs), duration);
 	}
 
+	/**
+	 * Returns a {@link CompletableFuture} completed with the outcome of the
+	 * given future. A {@link CompletablePromise} is returned as is, otherwise
+	 * one listener is added and cancelling the returned future cancels the
+	 * given one
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public static <V> CompletableFuture<V> toCompletableFuture(IFuture<V> future) {
+		if (future instanceof CompletableFuture) {
+			return (CompletableFuture<V>) future;
+		}
+
+		final CompletablePromise<V> cf = new CompletablePromise<>();
+		future.addListener((IFutureListener) f -> complete(cf, f));
+		cf.addListener(f -> {
+			if (f.isCancelled()) {
+				future.cancel(false);
+			}
+		});
+		return cf;
+	}
+
+	/**
+	 * Returns an {@link IPromise} completed with the outcome of the given
+	 * stage. A {@link CompletablePromise} is returned as is, otherwise
+	 * cancelling either side cancels the other
+	 */
+	@SuppressWarnings("unchecked")
+	public static <V> IPromise<V> toPromise(CompletionStage<V> stage) {
+		if (stage instanceof IPromise) {
+			return (IPromise<V>) stage;
+		}
+
+		final CompletablePromise<V> promise = new CompletablePromise<>();
+		stage.whenComplete((v, t) -> {
+			if (t != null) {
+				promise.completeExceptionally(t instanceof CompletionException
+						&& t.getCause() != null ? t.getCause() : t);
+			} else {
+				promise.complete(v);
+			}
+		});
+		if (stage instanceof Future) {
+			promise.addListener(f -> {
+				if (f.isCancelled()) {
+					((Future<?>) stage).cancel(false);
+				}
+			});
+		}
+		return promise;
+	}
+
+	private static <V> void complete(CompletablePromise<V> cf, IFuture<V> f) {
+		if (f.isSuccessful()) {
+			cf.complete(f.getNow());
+		} else if (f.isCancelled()) {
+			cf.cancel(false);
+		} else {
+			cf.completeExceptionally(f.cause());
+		}
+	}
+
 	private static <U> CompletableFuture<U> scheduleTimeout(CompletableFuture<U> future, Duration duration) {
 		final long millis = duration.toMillis();
 		scheduler.schedule(() -> {
@@ -0,0 +1,335 @@
+package winflex.util.concurrent;
+
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.function.BiConsumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A {@link CompletableFuture} that is also an {@link IPromise}. Both views
+ * share the completion state of the {@link CompletableFuture}, so passing one
+ * of these to either kind of API needs no conversion, and cancelling through
+ * either view cancels both.
+ * <p>
+ * Stages derived from it with the {@link CompletableFuture} methods are
+ * {@link CompletablePromise}s as well on Java 9 and later. Listeners are kept
+ * in a queue of their own behind a single completion action, registered with
+ * the first of them, which notifies them in the order they were added.
+ * {@link #removeListener(IFutureListener)} unlinks the listener from the
+ * queue
+ *
+ * @see CompletableFutures#toCompletableFuture(IFuture)
+ * @see CompletableFutures#toPromise(java.util.concurrent.CompletionStage)
+ * @author winflex
+ */
+public class CompletablePromise<V> extends CompletableFuture<V> implements
+		IPromise<V> {
+
+	private static final Logger logger = LoggerFactory
+			.getLogger(CompletablePromise.class);
+
+	@SuppressWarnings("rawtypes")
+	private static final AtomicReferenceFieldUpdater<CompletablePromise, ConcurrentMap> ATTACHMENTS = AtomicReferenceFieldUpdater
+			.newUpdater(CompletablePromise.class, ConcurrentMap.class,
+					"attachments");
+
+	private volatile ConcurrentMap<String, Object> attachments;
+
+	@SuppressWarnings("rawtypes")
+	private static final AtomicReferenceFieldUpdater<CompletablePromise, ConcurrentLinkedQueue> LISTENERS = AtomicReferenceFieldUpdater
+			.newUpdater(CompletablePromise.class, ConcurrentLinkedQueue.class,
+					"listeners");
+
+	/**
+	 * Listeners not notified yet, created with the completion action on first
+	 * use
+	 */
+	private volatile ConcurrentLinkedQueue<ListenerEntry> listeners;
+
+	@SuppressWarnings("rawtypes")
+	private static final AtomicIntegerFieldUpdater<CompletablePromise> NOTIFYING = AtomicIntegerFieldUpdater
+			.newUpdater(CompletablePromise.class, "notifying");
+
+	/**
+	 * Number of requests to notify listeners, only the thread raising it from
+	 * zero notifies, so listeners run one at a time and in order
+	 */
+	private volatile int notifying;
+
+	/**
+	 * Creates the stages derived by the {@link CompletableFuture} methods
+	 * (Java 9+)
+	 */
+	public <U> CompletableFuture<U> newIncompleteFuture() {
+		return new CompletablePromise<U>();
+	}
+
+	/**
+	 * Satisfies both {@link CompletableFuture#whenComplete(BiConsumer)} and
+	 * {@link IFuture#whenComplete(BiConsumer)}, with the semantics of the
+	 * former
+	 */
+	@Override
+	public CompletablePromise<V> whenComplete(
+			BiConsumer<? super V, ? super Throwable> action) {
+		final CompletableFuture<V> f = super.whenComplete(action);
+		if (f instanceof CompletablePromise) {
+			return (CompletablePromise<V>) f;
+		}
+
+		// Java 8 does not call newIncompleteFuture()
+		final CompletablePromise<V> promise = new CompletablePromise<>();
+		f.whenComplete((v, t) -> {
+			if (t != null) {
+				promise.completeExceptionally(t);
+			} else {
+				promise.complete(v);
+			}
+		});
+		return promise;
+	}
+
+	@Override
+	public V getNow() {
+		return isSuccessful() ? getNow(null) : null;
+	}
+
+	@Override
+	public boolean isSuccessful() {
+		return isDone() && !isCompletedExceptionally();
+	}
+
+	@Override
+	public Throwable cause() {
+		if (!isCompletedExceptionally()) {
+			return null;
+		}
+		try {
+			join();
+			return null;
+		} catch (CancellationException e) {
+			return e;
+		} catch (CompletionException e) {
+			return e.getCause() != null ? e.getCause() : e;
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public IPromise<V> setSuccess(Object result) {
+		complete((V) result);
+		return this;
+	}
+
+	@Override
+	public IPromise<V> setFailure(Throwable cause) {
+		completeExceptionally(cause);
+		return this;
+	}
+
+	@Override
+	public IPromise<V> addListener(
+			IFutureListener<? extends IFuture<V>> listener) {
+		return addListener(listener, SynchronousExecutor.INSTANCE);
+	}
+
+	@Override
+	public IPromise<V> addListener(
+			IFutureListener<? extends IFuture<V>> listener, Executor executor) {
+		Objects.requireNonNull(listener, "listener");
+		Objects.requireNonNull(executor, "executor");
+
+		listeners().add(new ListenerEntry(listener, executor));
+		if (isDone()) {
+			notifyListeners();
+		}
+		return this;
+	}
+
+	/**
+	 * Unlinks the first registration of the listener that has not been
+	 * notified yet
+	 */
+	@Override
+	public IPromise<V> removeListener(
+			IFutureListener<? extends IFuture<V>> listener) {
+		final ConcurrentLinkedQueue<ListenerEntry> listeners = this.listeners;
+		if (listeners == null) {
+			return this;
+		}
+		for (ListenerEntry entry : listeners) {
+			// fails if notification took the entry first
+			if (entry.listener.equals(listener) && listeners.remove(entry)) {
+				break;
+			}
+		}
+		return this;
+	}
+
+	@SuppressWarnings("unchecked")
+	private ConcurrentLinkedQueue<ListenerEntry> listeners() {
+		final ConcurrentLinkedQueue<ListenerEntry> listeners = this.listeners;
+		if (listeners != null) {
+			return listeners;
+		}
+		if (LISTENERS.compareAndSet(this, null, new ConcurrentLinkedQueue<>())) {
+			super.whenComplete((v, t) -> notifyListeners());
+		}
+		return this.listeners;
+	}
+
+	@Override
+	public IPromise<V> await() throws InterruptedException {
+		try {
+			get();
+		} catch (ExecutionException | CancellationException e) {
+			// completed, the outcome is available through cause()
+		}
+		return this;
+	}
+
+	@Override
+	public IPromise<V> awaitUninterruptibly() {
+		try {
+			join();
+		} catch (CompletionException | CancellationException e) {
+			// completed, the outcome is available through cause()
+		}
+		return this;
+	}
+
+	@Override
+	public boolean await(long timeout, TimeUnit unit)
+			throws InterruptedException {
+		try {
+			get(timeout, unit);
+		} catch (ExecutionException | CancellationException e) {
+			// completed
+		} catch (TimeoutException e) {
+			return false;
+		}
+		return true;
+	}
+
+	@Override
+	public boolean awaitUninterruptibly(long timeout, TimeUnit unit) {
+		final long deadline = System.nanoTime() + unit.toNanos(timeout);
+		boolean interrupted = false;
+		try {
+			for (;;) {
+				try {
+					return await(deadline - System.nanoTime(),
+							TimeUnit.NANOSECONDS);
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+		} finally {
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	@Override
+	public Object getAttachment(String name) {
+		Objects.requireNonNull(name, "name");
+		final Map<String, Object> attachments = this.attachments;
+		return attachments != null ? attachments.get(name) : null;
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public Map<String, Object> getAttachments() {
+		final ConcurrentMap<String, Object> attachments = this.attachments;
+		if (attachments != null) {
+			return attachments;
+		}
+		ATTACHMENTS.compareAndSet(this, null, new ConcurrentHashMap<>());
+		return this.attachments;
+	}
+
+	@Override
+	public IPromise<V> setAttachment(String name, Object value) {
+		getAttachments().put(name, value);
+		return this;
+	}
+
+	private void notifyListeners() {
+		if (NOTIFYING.getAndIncrement(this) != 0) {
+			// the notifying thread picks up what was added meanwhile
+			return;
+		}
+
+		final ConcurrentLinkedQueue<ListenerEntry> listeners = this.listeners;
+		int missed = 1;
+		for (;;) {
+			ListenerEntry entry;
+			while ((entry = listeners.poll()) != null) {
+				notifyListener(entry.listener, entry.executor);
+			}
+			missed = NOTIFYING.addAndGet(this, -missed);
+			if (missed == 0) {
+				break;
+			}
+		}
+	}
+
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	private void notifyListener(IFutureListener listener, Executor executor) {
+		if (executor == SynchronousExecutor.INSTANCE) {
+			notifyListenerNow(listener);
+		} else {
+			try {
+				executor.execute(new Runnable() {
+
+					@Override
+					public void run() {
+						notifyListenerNow(listener);
+					}
+				});
+			} catch (Throwable t) {
+				// the rest of the queue is still notified
+				logger.error(t.getMessage(), t);
+			}
+		}
+	}
+
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	private void notifyListenerNow(IFutureListener listener) {
+		try {
+			listener.operationCompleted(this);
+		} catch (Throwable t) {
+			logger.error(t.getMessage(), t);
+		}
+	}
+
+	/**
+	 * A registration waiting for completion
+	 */
+	@SuppressWarnings("rawtypes")
+	private static final class ListenerEntry {
+
+		final IFutureListener listener;
+		final Executor executor;
+
+		ListenerEntry(IFutureListener listener, Executor executor) {
+			this.listener = listener;
+			this.executor = executor;
+		}
+	}
+}
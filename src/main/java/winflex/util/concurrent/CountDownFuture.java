@@ -1,5 +1,6 @@
 package winflex.util.concurrent;
 
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 
 /**
  * 类似于{@link java.util.concurrent.CountDownLatch}, 但{@link CountDownFuture}可以添加完成监听器
@@ -12,14 +13,24 @@ public final class CountDownFuture extends DefaultProgressivePromise<Integer> {
     
     private static final long serialVersionUID = 8184812105149735481L;
     
+    private static final AtomicIntegerFieldUpdater<CountDownFuture> COUNT = AtomicIntegerFieldUpdater
+            .newUpdater(CountDownFuture.class, "count");
+    
+    private static final AtomicIntegerFieldUpdater<CountDownFuture> PUBLISHING = AtomicIntegerFieldUpdater
+            .newUpdater(CountDownFuture.class, "publishing");
+    
     private final int expectedCount;
     private volatile int count;
     
+    // 发布进度的请求数, 只有从0增加的线程发布, 保证进度按顺序单调递增
+    private volatile int publishing;
+    private int published;
+    
     public CountDownFuture(int count) {
     	this.expectedCount = count;
         this.count = count;
         if (count == 0) {
-            setSuccess(null);
+            super.setSuccess(null);
         }
     }
     
@@ -36,27 +47,40 @@ public final class CountDownFuture extends DefaultProgressivePromise<Integer> {
      * if n <= 0, then count is set to 0.
      */
     public void countDown(int n) {
-        if (isDone()) {
-            return;
-        }
-        
-        synchronized (this) {
-            if (isDone()) {
+        for (;;) {
+            final int count = this.count;
+            if (count == 0) {
                 return;
             }
             
-            super.setProgress(expectedCount - count + n, expectedCount);
-            if (n <= 0) {
-                this.count = 0;
-                super.setSuccess(null);
-            } else {
-                final int count = this.count - n;
-                if (count > 0) {
-                    this.count = count;
-                } else {
-                    this.count = 0;
+            final int next = n <= 0 ? 0 : Math.max(count - n, 0);
+            if (COUNT.compareAndSet(this, count, next)) {
+                publishProgress();
+                if (next == 0) {
                     super.setSuccess(null);
                 }
+                return;
+            }
+        }
+    }
+    
+    /**
+     * 并发的countDown可能以与CAS相反的顺序到达这里, 由一个线程读取最新的count发布, 其他线程的请求合并到它的下一轮
+     */
+    private void publishProgress() {
+        if (PUBLISHING.getAndIncrement(this) != 0) {
+            return;
+        }
+        int missed = 1;
+        for (;;) {
+            final int progress = expectedCount - this.count;
+            if (progress > published) {
+                published = progress;
+                super.setProgress(progress, expectedCount);
+            }
+            missed = PUBLISHING.addAndGet(this, -missed);
+            if (missed == 0) {
+                return;
             }
         }
     }
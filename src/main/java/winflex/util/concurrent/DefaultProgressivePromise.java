@@ -1,13 +1,20 @@
 package winflex.util.concurrent;
 
-import java.util.HashMap;
-import java.util.Map;
-import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import winflex.util.NamedThreadFactory;
+
 /**
  *
  *
@@ -21,6 +28,80 @@ public class DefaultProgressivePromise<V> extends DefaultPromise<V> implements
 	private static final Logger logger = LoggerFactory
 			.getLogger(DefaultProgressivePromise.class);
 
+	/**
+	 * How long an update skipped by a throttle with only a step waits before
+	 * it is delivered anyway
+	 */
+	static final long TRAILING_DELAY_NANOS = TimeUnit.MILLISECONDS
+			.toNanos(100);
+
+	@SuppressWarnings("rawtypes")
+	private static final AtomicReferenceFieldUpdater<DefaultProgressivePromise, Progress> NOTIFIED = AtomicReferenceFieldUpdater
+			.newUpdater(DefaultProgressivePromise.class, Progress.class,
+					"notified");
+
+	@SuppressWarnings("rawtypes")
+	private static final AtomicReferenceFieldUpdater<DefaultProgressivePromise, ConcurrentMap> PROGRESS_TASKS = AtomicReferenceFieldUpdater
+			.newUpdater(DefaultProgressivePromise.class, ConcurrentMap.class,
+					"progressTasks");
+
+	@SuppressWarnings("rawtypes")
+	private static final AtomicIntegerFieldUpdater<DefaultProgressivePromise> LATEST_SEQUENCE = AtomicIntegerFieldUpdater
+			.newUpdater(DefaultProgressivePromise.class, "latestSequence");
+
+	@SuppressWarnings("rawtypes")
+	private static final AtomicIntegerFieldUpdater<DefaultProgressivePromise> TRAILING = AtomicIntegerFieldUpdater
+			.newUpdater(DefaultProgressivePromise.class, "trailing");
+
+	@SuppressWarnings("rawtypes")
+	private static final AtomicIntegerFieldUpdater<DefaultProgressivePromise> DELIVERING = AtomicIntegerFieldUpdater
+			.newUpdater(DefaultProgressivePromise.class, "delivering");
+
+	private volatile long progressIntervalNanos;
+
+	private volatile double progressStep;
+
+	/**
+	 * The last progress set while throttled, delivered or not. Kept in
+	 * primitives so that a skipped update allocates nothing, and guarded by
+	 * {@link #latestSequence}
+	 */
+	private transient volatile long latestProgress;
+
+	private transient volatile long latestTotal;
+
+	/**
+	 * Odd while the latest progress is written, 0 until it is first set
+	 */
+	private transient volatile int latestSequence;
+
+	/**
+	 * The last progress that notified the listeners
+	 */
+	private transient volatile Progress notified;
+
+	/**
+	 * 1 while a delivery of a skipped update is scheduled
+	 */
+	private transient volatile int trailing;
+
+	/**
+	 * Delivery requests not yet served, only the thread raising it from 0
+	 * delivers, so listeners see updates one at a time and in order
+	 */
+	private transient volatile int delivering;
+
+	/**
+	 * The last progress delivered, accessed only by the delivering thread
+	 */
+	private transient Progress delivered;
+
+	/**
+	 * Notification tasks for listeners with an asynchronous executor, keyed by
+	 * registration, created on first use and dropped on completion
+	 */
+	transient volatile ConcurrentMap<Object, ProgressTask> progressTasks;
+
 	public DefaultProgressivePromise() {
 	}
 
@@ -28,6 +109,44 @@ public class DefaultProgressivePromise<V> extends DefaultPromise<V> implements
 		super(executor);
 	}
 
+	/**
+	 * Limits how often progressive listeners are notified. A call to
+	 * {@link #setProgress(long, long)} notifies them only when at least
+	 * {@code interval} has passed or the progress has advanced by at least
+	 * {@code step} of the total since the last notification; a zero disables
+	 * the corresponding condition, and when both are zero every call notifies.
+	 * Reaching the total always notifies.
+	 * <p>
+	 * A skipped update is not lost: the latest one is delivered when the
+	 * interval expires, or 100 milliseconds later with a step alone, if no
+	 * later call notified first. That delivery runs on the executor the
+	 * promise was created with, or on a shared timer thread if it has none.
+	 * <p>
+	 * Listeners using {@link SynchronousExecutor} are notified one update at a
+	 * time; an update set while another thread is notifying them is delivered
+	 * by that thread. Regardless of throttling, a listener with an
+	 * asynchronous executor has at most one notification task queued at a
+	 * time, and that task reports the latest progress when it runs rather than
+	 * the one that scheduled it
+	 *
+	 * @param step
+	 *            fraction of the total, between 0 and 1
+	 */
+	public DefaultProgressivePromise<V> throttleProgress(long interval,
+			TimeUnit unit, double step) {
+		if (interval < 0) {
+			throw new IllegalArgumentException("interval: " + interval
+					+ " (expected: >= 0)");
+		}
+		if (!(step >= 0 && step <= 1)) {
+			throw new IllegalArgumentException("step: " + step
+					+ " (expected: 0 <= step <= 1)");
+		}
+		this.progressIntervalNanos = unit.toNanos(interval);
+		this.progressStep = step;
+		return this;
+	}
+
 	@Override
 	public IProgressivePromise<V> setProgress(long progress, long total) {
 		if (progress < 0 || total < 0 || progress > total) {
@@ -39,52 +158,204 @@ public class DefaultProgressivePromise<V> extends DefaultPromise<V> implements
 			return this;
 		}
 
-		notifyProgressiveListeners(progress, total);
+		final long intervalNanos = progressIntervalNanos;
+		final double step = progressStep;
+		final boolean throttled = intervalNanos > 0 || step > 0;
+		final long now = throttled ? System.nanoTime() : 0;
+		if (throttled) {
+			setLatest(progress, total);
+		}
+		Progress update = null;
+		for (;;) {
+			final Progress last = this.notified;
+			if (last != null && progress != total
+					&& !due(last, progress, total, now, intervalNanos, step)) {
+				scheduleTrailing(last, now, intervalNanos);
+				return this;
+			}
+			if (update == null) {
+				update = new Progress(progress, total, now);
+			}
+			if (NOTIFIED.compareAndSet(this, last, update)) {
+				break;
+			}
+		}
+
+		deliver();
 		return this;
 	}
 
-	@SuppressWarnings({ "unchecked", "rawtypes" })
-	private void notifyProgressiveListeners(long progress, long total) {
-		Map<IFutureListener<? extends IFuture<V>>, Executor> listeners;
-		synchronized (this) {
-			listeners = new HashMap<>(listeners());
+	private static boolean due(Progress last, long progress, long total,
+			long now, long intervalNanos, double step) {
+		if (intervalNanos == 0 && step == 0) {
+			return true;
+		}
+		if (intervalNanos > 0 && now - last.nanoTime >= intervalNanos) {
+			return true;
 		}
+		return step > 0
+				&& (total != last.total || progress - last.progress >= step
+						* total);
+	}
 
-		for (Entry<IFutureListener<? extends IFuture<V>>, Executor> entry : listeners
-				.entrySet()) {
-			IFutureListener<? extends IFuture<V>> l = entry.getKey();
-			if (l instanceof IProgressiveFutureListener) {
-				notifyProgressiveListener((IProgressiveFutureListener) l,
-						entry.getValue(), progress, total);
+	private void setLatest(long progress, long total) {
+		for (;;) {
+			final int sequence = latestSequence;
+			if ((sequence & 1) == 0
+					&& LATEST_SEQUENCE.compareAndSet(this, sequence,
+							sequence + 1)) {
+				latestProgress = progress;
+				latestTotal = total;
+				latestSequence = sequence + 2;
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Schedules the delivery of the latest update unless one is pending
+	 */
+	private void scheduleTrailing(Progress last, long now, long intervalNanos) {
+		if (trailing != 0 || !TRAILING.compareAndSet(this, 0, 1)) {
+			return;
+		}
+		final long delay = intervalNanos > 0 ? last.nanoTime + intervalNanos
+				- now : TRAILING_DELAY_NANOS;
+		try {
+			Timer.INSTANCE.schedule(this::executeTrailing, delay,
+					TimeUnit.NANOSECONDS);
+		} catch (Throwable t) {
+			trailing = 0;
+			logger.error(t.getMessage(), t);
+		}
+	}
+
+	/**
+	 * Runs on the timer thread, hands the delivery to the promise's executor
+	 * so that the timer never runs listeners of its own accord
+	 */
+	private void executeTrailing() {
+		final Executor executor = defaultExecutor();
+		if (executor == SynchronousExecutor.INSTANCE) {
+			deliverTrailing();
+			return;
+		}
+		try {
+			executor.execute(this::deliverTrailing);
+		} catch (Throwable t) {
+			trailing = 0;
+			logger.error(t.getMessage(), t);
+		}
+	}
+
+	private void deliverTrailing() {
+		// cleared first, an update skipped from now on schedules another run
+		trailing = 0;
+		for (;;) {
+			final int sequence = latestSequence;
+			if (sequence == 0 || isDone()) {
+				return;
+			}
+			if ((sequence & 1) != 0) {
+				continue;
+			}
+			final long progress = latestProgress;
+			final long total = latestTotal;
+			if (latestSequence != sequence) {
+				continue;
+			}
+
+			final Progress last = this.notified;
+			if (last != null && last.progress == progress
+					&& last.total == total) {
+				return;
+			}
+			final Progress update = new Progress(progress, total,
+					System.nanoTime());
+			if (NOTIFIED.compareAndSet(this, last, update)) {
+				deliver();
+				return;
 			}
 		}
 	}
 
-	private void notifyProgressiveListener(
+	/**
+	 * Notifies the listeners of the last progress that notified, unless
+	 * another thread is doing so, in which case that thread notifies again
+	 * once it is done
+	 */
+	private void deliver() {
+		if (DELIVERING.getAndIncrement(this) != 0) {
+			return;
+		}
+		int missed = 1;
+		for (;;) {
+			final Progress p = notified;
+			if (p != delivered) {
+				delivered = p;
+				notifyProgressiveListeners(p.progress, p.total);
+			}
+			missed = DELIVERING.addAndGet(this, -missed);
+			if (missed == 0) {
+				return;
+			}
+		}
+	}
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private void notifyProgressiveListeners(long progress, long total) {
+		forEachRegistration((r, l, e) -> {
+			if (l instanceof IProgressiveFutureListener) {
+				notifyProgressiveListener(r, (IProgressiveFutureListener) l, e,
+						progress, total);
+			}
+		});
+	}
+
+	private void notifyProgressiveListener(Object registration,
 			IProgressiveFutureListener<IProgressiveFuture<V>> l, Executor e,
 			long progress, long total) {
 		if (e == SynchronousExecutor.INSTANCE) {
+			if (isDone()) {
+				return;
+			}
 			try {
 				l.operationProgressed(this, progress, total);
 			} catch (Exception t) {
 				logger.error(t.getMessage(), t);
 			}
-		} else {
-			e.execute(new Runnable() {
+			return;
+		}
 
-				@Override
-				public void run() {
-					try {
-						l.operationProgressed(DefaultProgressivePromise.this,
-								progress, total);
-					} catch (Exception t) {
-						logger.error(t.getMessage(), t);
-					}
-				}
-			});
+		if (isDone()) {
+			return;
+		}
+		ConcurrentMap<Object, ProgressTask> tasks = this.progressTasks;
+		if (tasks == null) {
+			PROGRESS_TASKS.compareAndSet(this, null,
+					new ConcurrentHashMap<>());
+			tasks = this.progressTasks;
+			if (tasks == null) {
+				// completed meanwhile
+				return;
+			}
+		}
+		ProgressTask task = tasks.get(registration);
+		if (task == null) {
+			task = tasks.computeIfAbsent(registration, k -> new ProgressTask(l));
+		}
+		task.schedule(e);
+		if (isDone()) {
+			// may have raced with completed()
+			progressTasks = null;
 		}
 	}
 
+	@Override
+	void completed() {
+		progressTasks = null;
+	}
+
 	@Override
 	public IProgressivePromise<V> await() throws InterruptedException {
 		super.await();
@@ -116,6 +387,11 @@ public class DefaultProgressivePromise<V> extends DefaultPromise<V> implements
 			IFutureListener<? extends IFuture<V>> listener) {
 
 		super.removeListener(listener);
+		final ConcurrentMap<Object, ProgressTask> tasks = this.progressTasks;
+		if (tasks != null) {
+			// the remaining registrations of the listener get new tasks
+			tasks.values().removeIf(t -> t.listener.equals(listener));
+		}
 		return this;
 	}
 
@@ -124,4 +400,70 @@ public class DefaultProgressivePromise<V> extends DefaultPromise<V> implements
 		super.setAttachment(name, value);
 		return this;
 	}
+
+	private static final class Progress {
+
+		final long progress;
+		final long total;
+		final long nanoTime;
+
+		Progress(long progress, long total, long nanoTime) {
+			this.progress = progress;
+			this.total = total;
+			this.nanoTime = nanoTime;
+		}
+	}
+
+	/**
+	 * Delivers the latest progress to one listener registration, queued on
+	 * its executor at most once at a time
+	 */
+	private final class ProgressTask implements Runnable {
+
+		final IProgressiveFutureListener<IProgressiveFuture<V>> listener;
+		final AtomicBoolean scheduled = new AtomicBoolean();
+
+		ProgressTask(IProgressiveFutureListener<IProgressiveFuture<V>> listener) {
+			this.listener = listener;
+		}
+
+		void schedule(Executor executor) {
+			if (scheduled.get() || !scheduled.compareAndSet(false, true)) {
+				return;
+			}
+			try {
+				executor.execute(this);
+			} catch (Throwable t) {
+				scheduled.set(false);
+				logger.error(t.getMessage(), t);
+			}
+		}
+
+		@Override
+		public void run() {
+			// cleared first, a later update schedules another run
+			scheduled.set(false);
+			if (isDone()) {
+				// operationCompleted has been or is being delivered
+				return;
+			}
+			final Progress p = notified;
+			try {
+				listener.operationProgressed(DefaultProgressivePromise.this,
+						p.progress, p.total);
+			} catch (Exception t) {
+				logger.error(t.getMessage(), t);
+			}
+		}
+	}
+
+	/**
+	 * Delivers skipped updates, started on first use
+	 */
+	private static final class Timer {
+
+		static final ScheduledExecutorService INSTANCE = Executors
+				.newSingleThreadScheduledExecutor(new NamedThreadFactory(
+						"ProgressivePromise-Timer", true));
+	}
 }
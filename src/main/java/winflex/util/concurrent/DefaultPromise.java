@@ -1,9 +1,10 @@
 package winflex.util.concurrent;
 
 import java.io.Serializable;
-import java.util.HashMap;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.Objects;
 import java.util.concurrent.CancellationException;
 import java.util.concurrent.ConcurrentHashMap;
@@ -12,10 +13,15 @@ import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BiConsumer;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import winflex.util.SystemPropertyUtils;
+
 /**
  * 
  *
@@ -30,13 +36,74 @@ public class DefaultPromise<V> implements IPromise<V>, Serializable {
 
 	private static final Object SUCCESS_SIGNAL = new Object();
 
+	private static final int INLINE_ATTACHMENTS = 2;
+
+	/**
+	 * Listeners run by {@link SynchronousExecutor} may complete other promises
+	 * and so recurse, past this depth the notifications are deferred to the
+	 * outermost one on the same thread. A thread about to block in
+	 * {@code await} or {@code get} runs the ones deferred on it first
+	 */
+	static final int MAX_NOTIFICATION_DEPTH = SystemPropertyUtils
+			.getInt("winflex.promise.maxNotificationDepth", 16);
+
+	private static final ThreadLocal<NotificationStack> NOTIFICATION_STACK = ThreadLocal
+			.withInitial(NotificationStack::new);
+
+	/**
+	 * Marks the listener storage as taken by the completing thread, listeners
+	 * added afterwards are notified directly
+	 */
+	private static final Object NOTIFIED = new Object();
+
+	@SuppressWarnings("rawtypes")
+	private static final AtomicReferenceFieldUpdater<DefaultPromise, Object> LISTENERS = AtomicReferenceFieldUpdater
+			.newUpdater(DefaultPromise.class, Object.class, "listeners");
+
+	@SuppressWarnings("rawtypes")
+	private static final AtomicReferenceFieldUpdater<DefaultPromise, Object> RESULT = AtomicReferenceFieldUpdater
+			.newUpdater(DefaultPromise.class, Object.class, "result");
+
+	@SuppressWarnings("rawtypes")
+	private static final AtomicReferenceFieldUpdater<DefaultPromise, Waiter> WAITERS = AtomicReferenceFieldUpdater
+			.newUpdater(DefaultPromise.class, Waiter.class, "waiters");
+
+	private static final int MIN_SPINS = Runtime.getRuntime()
+			.availableProcessors() > 1 ? 16 : 0;
+	private static final int MAX_SPINS = MIN_SPINS << 6;
+
+	/**
+	 * Adaptive spin limit shared by all promises. It is only a hint: racing
+	 * updates may be lost, and it is written only when it changes, so waiters
+	 * that keep the limit pinned at either bound only read it
+	 */
+	private static int spins = MIN_SPINS;
+
 	private volatile Object result;
 
 	/**
-	 * Accessed only inside synchronized(this)
+	 * Treiber stack of threads blocked in await, cleared on completion
+	 */
+	private transient volatile Waiter waiters;
+
+	/**
+	 * null, a single listener using the default executor, a
+	 * {@link ListenerEntry}, a copy-on-write Object[] of those in registration
+	 * order, or {@link #NOTIFIED}. Updated only by CAS
+	 */
+	private transient volatile Object listeners;
+
+	@SuppressWarnings("rawtypes")
+	private static final AtomicReferenceFieldUpdater<DefaultPromise, Object> ATTACHMENTS = AtomicReferenceFieldUpdater
+			.newUpdater(DefaultPromise.class, Object.class, "attachments");
+
+	/**
+	 * Allocated lazily: null, an immutable chain of at most
+	 * {@link #INLINE_ATTACHMENTS} {@link Attachment}s, or a ConcurrentMap once
+	 * more are added or {@link #getAttachments()} is called. Updated only by
+	 * CAS
 	 */
-	private final Map<IFutureListener<? extends IFuture<V>>, Executor> listeners = new HashMap<>();
-	private final ConcurrentMap<String, Object> attachments = new ConcurrentHashMap<>();
+	private volatile Object attachments;
 
 	/**
 	 * The default executor to execute
@@ -80,17 +147,9 @@ public class DefaultPromise<V> implements IPromise<V>, Serializable {
 
 	@Override
 	public boolean cancel(boolean mayInterruptIfRunning) {
-		if (isDone()) {
+		if (isDone() || !complete(new CauseHolder(new CancellationException()))) {
 			return false;
 		}
-
-		synchronized (this) {
-			if (isDone()) {
-				return false;
-			}
-			result = new CauseHolder(new CancellationException());
-			notifyAll();
-		}
 		notifyListeners();
 		return true;
 	}
@@ -181,9 +240,27 @@ public class DefaultPromise<V> implements IPromise<V>, Serializable {
 			return this;
 		}
 
-		synchronized (this) {
-			if (!isDone()) {
-				listeners.put(listener, executor);
+		final Object added = executor == defaultExecutor ? listener
+				: new ListenerEntry(listener, executor);
+		for (;;) {
+			final Object current = listeners;
+			if (current == NOTIFIED) {
+				break;
+			}
+
+			final Object update;
+			if (current == null) {
+				update = added;
+			} else if (current instanceof Object[]) {
+				final Object[] array = (Object[]) current;
+				final Object[] grown = new Object[array.length + 1];
+				System.arraycopy(array, 0, grown, 0, array.length);
+				grown[array.length] = added;
+				update = grown;
+			} else {
+				update = new Object[] { current, added };
+			}
+			if (LISTENERS.compareAndSet(this, current, update)) {
 				return this;
 			}
 		}
@@ -195,28 +272,118 @@ public class DefaultPromise<V> implements IPromise<V>, Serializable {
 	@Override
 	public IPromise<V> removeListener(
 			IFutureListener<? extends IFuture<V>> listener) {
-		synchronized (this) {
-			if (!isDone()) {
-				listeners.remove(listener);
+		for (;;) {
+			final Object current = listeners;
+			if (current == null || current == NOTIFIED) {
+				return this;
+			}
+
+			final Object update;
+			if (current instanceof Object[]) {
+				final Object[] array = (Object[]) current;
+				int index = -1;
+				for (int i = 0; i < array.length; i++) {
+					if (listener.equals(listenerOf(array[i]))) {
+						index = i;
+						break;
+					}
+				}
+				if (index < 0) {
+					return this;
+				}
+				if (array.length == 2) {
+					update = array[1 - index];
+				} else {
+					final Object[] shrunk = new Object[array.length - 1];
+					System.arraycopy(array, 0, shrunk, 0, index);
+					System.arraycopy(array, index + 1, shrunk, index,
+							shrunk.length - index);
+					update = shrunk;
+				}
+			} else if (listener.equals(listenerOf(current))) {
+				update = null;
+			} else {
+				return this;
+			}
+			if (LISTENERS.compareAndSet(this, current, update)) {
+				return this;
 			}
 		}
-		return this;
 	}
 
 	@Override
 	public Object getAttachment(String name) {
-		return attachments.get(name);
+		Objects.requireNonNull(name, "name");
+		final Object current = attachments;
+		if (current instanceof ConcurrentMap) {
+			return asMap(current).get(name);
+		}
+		for (Attachment a = (Attachment) current; a != null; a = a.next) {
+			if (a.name.equals(name)) {
+				return a.value;
+			}
+		}
+		return null;
 	}
 
 	@Override
 	public Map<String, Object> getAttachments() {
-		return attachments;
+		// The returned map is live, so the inline attachments are inflated
+		for (;;) {
+			final Object current = attachments;
+			if (current instanceof ConcurrentMap) {
+				return asMap(current);
+			}
+			final ConcurrentMap<String, Object> map = new ConcurrentHashMap<>();
+			for (Attachment a = (Attachment) current; a != null; a = a.next) {
+				map.putIfAbsent(a.name, a.value);
+			}
+			if (ATTACHMENTS.compareAndSet(this, current, map)) {
+				return map;
+			}
+		}
 	}
 
 	@Override
 	public IPromise<V> setAttachment(String name, Object value) {
-		attachments.put(name, value);
-		return this;
+		Objects.requireNonNull(name, "name");
+		Objects.requireNonNull(value, "value");
+		for (;;) {
+			final Object current = attachments;
+			if (current instanceof ConcurrentMap) {
+				asMap(current).put(name, value);
+				return this;
+			}
+
+			final Object update;
+			final Attachment head = (Attachment) current;
+			int size = 0;
+			boolean replaced = false;
+			for (Attachment a = head; a != null; a = a.next) {
+				size++;
+				replaced |= a.name.equals(name);
+			}
+			if (replaced) {
+				update = new Attachment(name, value, head.without(name));
+			} else if (size < INLINE_ATTACHMENTS) {
+				update = new Attachment(name, value, head);
+			} else {
+				final ConcurrentMap<String, Object> map = new ConcurrentHashMap<>();
+				for (Attachment a = head; a != null; a = a.next) {
+					map.putIfAbsent(a.name, a.value);
+				}
+				map.put(name, value);
+				update = map;
+			}
+			if (ATTACHMENTS.compareAndSet(this, current, update)) {
+				return this;
+			}
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static ConcurrentMap<String, Object> asMap(Object attachments) {
+		return (ConcurrentMap<String, Object>) attachments;
 	}
 
 	@Override
@@ -240,36 +407,60 @@ public class DefaultPromise<V> implements IPromise<V>, Serializable {
 		if (isDone()) {
 			return false;
 		}
+		return complete(new CauseHolder(cause));
+	}
 
-		synchronized (this) {
-			if (isDone()) {
-				return false;
-			}
+	private boolean setSuccess0(Object result) {
+		if (isDone()) {
+			return false;
+		}
+		return complete(result == null ? SUCCESS_SIGNAL : result);
+	}
+
+	/**
+	 * Sets the result by CAS and wakes up the blocked waiters, if any
+	 */
+	private boolean complete(Object result) {
+		if (!RESULT.compareAndSet(this, null, result)) {
+			return false;
+		}
 
-			result = new CauseHolder(cause);
-			notifyAll();
+		// A waiter is pushed before it rechecks the result, so either it sees
+		// the result or it is seen here
+		if (waiters != null) {
+			for (Waiter w = WAITERS.getAndSet(this, null); w != null; w = w.next) {
+				final Thread t = w.thread;
+				if (t != null) {
+					w.thread = null;
+					LockSupport.unpark(t);
+				}
+			}
 		}
 		return true;
 	}
 
-	private boolean setSuccess0(Object result) {
-		if (isDone()) {
+	/**
+	 * Busy-waits briefly before parking, the spin limit grows when spinning
+	 * pays off and shrinks when it does not
+	 */
+	private boolean spin() {
+		final int limit = spins;
+		if (limit == 0) {
 			return false;
 		}
 
-		synchronized (this) {
+		for (int i = 0; i < limit; i++) {
 			if (isDone()) {
-				return false;
-			}
-
-			if (result == null) {
-				this.result = SUCCESS_SIGNAL;
-			} else {
-				this.result = result;
+				if (limit < MAX_SPINS) {
+					spins = Math.min(limit << 1, MAX_SPINS);
+				}
+				return true;
 			}
-			notifyAll();
 		}
-		return true;
+		if (limit > MIN_SPINS) {
+			spins = Math.max(limit >>> 1, MIN_SPINS);
+		}
+		return false;
 	}
 
 	private IPromise<V> await0(boolean interruptable)
@@ -282,25 +473,41 @@ public class DefaultPromise<V> implements IPromise<V>, Serializable {
 			throw new InterruptedException("thread had been interrupted");
 		}
 
+		runDeferredNotifications();
+		if (isDone() || spin()) {
+			return this;
+		}
+
 		boolean interrupted = false;
-		synchronized (this) {
-			while (!isDone()) {
-				try {
-					wait();
-				} catch (InterruptedException e) {
-					if (interruptable) {
-						throw e;
-					} else {
+		Waiter w = null;
+		boolean queued = false;
+		try {
+			for (;;) {
+				if (isDone()) {
+					return this;
+				} else if (w == null) {
+					w = new Waiter();
+				} else if (!queued) {
+					w.next = waiters;
+					queued = WAITERS.compareAndSet(this, w.next, w);
+				} else {
+					LockSupport.park(this);
+					if (Thread.interrupted()) {
+						if (interruptable) {
+							throw new InterruptedException();
+						}
 						interrupted = true;
 					}
 				}
 			}
+		} finally {
+			if (queued) {
+				removeWaiter(w);
+			}
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
 		}
-
-		if (interrupted) {
-			Thread.currentThread().interrupt();
-		}
-		return this;
 	}
 
 	private boolean await0(long timeoutNanos, boolean interruptable)
@@ -317,53 +524,95 @@ public class DefaultPromise<V> implements IPromise<V>, Serializable {
 			throw new InterruptedException("thread had been interrupted");
 		}
 
-		long startTime = System.nanoTime();
-		long waitTime = timeoutNanos;
-		boolean interrupted = false;
+		final long deadline = System.nanoTime() + timeoutNanos;
+		runDeferredNotifications();
+		if (isDone() || spin()) {
+			return true;
+		}
 
+		boolean interrupted = false;
+		Waiter w = null;
+		boolean queued = false;
 		try {
-			synchronized (this) {
+			for (;;) {
 				if (isDone()) {
 					return true;
 				}
-
-				for (;;) {
-					try {
-						wait(waitTime / 1000000, (int) (waitTime % 1000000));
-					} catch (InterruptedException e) {
+				final long waitTime = deadline - System.nanoTime();
+				if (waitTime <= 0) {
+					return isDone();
+				} else if (w == null) {
+					w = new Waiter();
+				} else if (!queued) {
+					w.next = waiters;
+					queued = WAITERS.compareAndSet(this, w.next, w);
+				} else {
+					LockSupport.parkNanos(this, waitTime);
+					if (Thread.interrupted()) {
 						if (interruptable) {
-							throw e;
-						} else {
-							interrupted = true;
-						}
-					}
-
-					if (isDone()) {
-						return true;
-					} else {
-						waitTime = timeoutNanos
-								- (System.nanoTime() - startTime);
-						if (waitTime <= 0) {
-							return isDone();
+							throw new InterruptedException();
 						}
+						interrupted = true;
 					}
 				}
 			}
 		} finally {
+			if (queued) {
+				removeWaiter(w);
+			}
 			if (interrupted) {
 				Thread.currentThread().interrupt();
 			}
 		}
 	}
 
+	/**
+	 * Unlinks a waiter that is leaving, together with any other stale ones.
+	 * Same approach as {@link java.util.concurrent.FutureTask}
+	 */
+	private void removeWaiter(Waiter node) {
+		if (node.thread == null) {
+			// Already released by complete()
+			return;
+		}
+		node.thread = null;
+		retry: for (;;) {
+			for (Waiter pred = null, q = waiters, s; q != null; q = s) {
+				s = q.next;
+				if (q.thread != null) {
+					pred = q;
+				} else if (pred != null) {
+					pred.next = s;
+					if (pred.thread == null) {
+						continue retry;
+					}
+				} else if (!WAITERS.compareAndSet(this, q, s)) {
+					continue retry;
+				}
+			}
+			break;
+		}
+	}
+
 	@SuppressWarnings({ "rawtypes", "unchecked" })
 	private void notifyListener(IFutureListener listener, Executor executor) {
 		if (executor == SynchronousExecutor.INSTANCE) {
+			final NotificationStack stack = NOTIFICATION_STACK.get();
+			if (stack.depth >= MAX_NOTIFICATION_DEPTH) {
+				// Too deep, let the outermost notification on this thread run it
+				stack.pending.add(() -> notifyListenerNow(listener));
+				return;
+			}
+
 			// No need to new runnable instance
+			stack.depth++;
 			try {
-				listener.operationCompleted(this);
-			} catch (Throwable t) {
-				logger.error(t.getMessage(), t);
+				notifyListenerNow(listener);
+			} finally {
+				stack.depth--;
+			}
+			if (stack.depth == 0 && !stack.pending.isEmpty()) {
+				stack.drain();
 			}
 		} else {
 			executor.execute(new Runnable() {
@@ -380,24 +629,231 @@ public class DefaultPromise<V> implements IPromise<V>, Serializable {
 		}
 	}
 
+	/**
+	 * Runs the task now, or defers it to the outermost notification on the
+	 * current thread if {@link #MAX_NOTIFICATION_DEPTH} synchronous listeners
+	 * and tasks are already nested on it. The {@link Futures} stages run
+	 * through here, so they share one depth bound with listener notification
+	 */
+	static void runNotification(Runnable task) {
+		final NotificationStack stack = NOTIFICATION_STACK.get();
+		if (stack.depth >= MAX_NOTIFICATION_DEPTH) {
+			stack.pending.add(task);
+			return;
+		}
+
+		stack.depth++;
+		try {
+			runSafely(task);
+		} finally {
+			stack.depth--;
+		}
+		if (stack.depth == 0 && !stack.pending.isEmpty()) {
+			stack.drain();
+		}
+	}
+
+	private static void runSafely(Runnable task) {
+		try {
+			task.run();
+		} catch (Throwable t) {
+			logger.error(t.getMessage(), t);
+		}
+	}
+
+	/**
+	 * Runs the notifications deferred on the current thread before blocking
+	 * on it. One of them may be what completes this promise, and the
+	 * outermost notification that would otherwise run them is below us on
+	 * the same stack
+	 */
+	private static void runDeferredNotifications() {
+		final NotificationStack stack = NOTIFICATION_STACK.get();
+		if (!stack.pending.isEmpty()) {
+			stack.drain();
+		}
+	}
+
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	private void notifyListenerNow(IFutureListener listener) {
+		try {
+			listener.operationCompleted(this);
+		} catch (Throwable t) {
+			logger.error(t.getMessage(), t);
+		}
+	}
+
 	private void notifyListeners() {
-		Map<IFutureListener<? extends IFuture<V>>, Executor> copy;
-		synchronized (this) {
-			copy = new HashMap<>(listeners);
+		completed();
+
+		// Takes the listeners over atomically, no lock or copy needed
+		final Object taken = LISTENERS.getAndSet(this, NOTIFIED);
+		if (taken == null || taken == NOTIFIED) {
+			return;
+		}
+
+		if (taken instanceof Object[]) {
+			for (Object l : (Object[]) taken) {
+				notifyListener(listenerOf(l), executorOf(l));
+			}
+		} else {
+			notifyListener(listenerOf(taken), executorOf(taken));
+		}
+	}
+
+	/**
+	 * Invokes {@code action} for each listener currently registered, in
+	 * registration order, without copying the listener storage
+	 */
+	@SuppressWarnings("unchecked")
+	protected final void forEachListener(
+			BiConsumer<IFutureListener<? extends IFuture<V>>, Executor> action) {
+		final Object current = listeners;
+		if (current == null || current == NOTIFIED) {
+			return;
 		}
 
-		for (Entry<IFutureListener<? extends IFuture<V>>, Executor> entry : copy
-				.entrySet()) {
-			notifyListener(entry.getKey(), entry.getValue());
+		if (current instanceof Object[]) {
+			for (Object l : (Object[]) current) {
+				action.accept(listenerOf(l), executorOf(l));
+			}
+		} else {
+			action.accept(listenerOf(current), executorOf(current));
 		}
 	}
 
+	/**
+	 * Like {@link #forEachListener(BiConsumer)}, also passing the object
+	 * standing for each registration: the same instance for as long as the
+	 * registration lasts, and distinct for registrations with different
+	 * executors
+	 */
+	final void forEachRegistration(RegistrationVisitor visitor) {
+		final Object current = listeners;
+		if (current == null || current == NOTIFIED) {
+			return;
+		}
+
+		if (current instanceof Object[]) {
+			for (Object l : (Object[]) current) {
+				visitor.visit(l, listenerOf(l), executorOf(l));
+			}
+		} else {
+			visitor.visit(current, listenerOf(current), executorOf(current));
+		}
+	}
+
+	/**
+	 * Called once the promise is done, before its listeners are notified
+	 */
+	void completed() {
+	}
+
+	/**
+	 * A snapshot of the listeners currently registered, in registration
+	 * order. Changes to the promise are not reflected in it and it can not be
+	 * modified
+	 *
+	 * @deprecated copies the listener storage on every call, use
+	 *             {@link #forEachListener(BiConsumer)}
+	 */
+	@Deprecated
+	protected final Map<IFutureListener<? extends IFuture<V>>, Executor> listeners() {
+		final Map<IFutureListener<? extends IFuture<V>>, Executor> snapshot = new LinkedHashMap<>();
+		forEachListener(snapshot::put);
+		return Collections.unmodifiableMap(snapshot);
+	}
+
+	@SuppressWarnings("rawtypes")
+	private static IFutureListener listenerOf(Object l) {
+		return l instanceof ListenerEntry ? ((ListenerEntry) l).listener
+				: (IFutureListener) l;
+	}
+
+	private Executor executorOf(Object l) {
+		return l instanceof ListenerEntry ? ((ListenerEntry) l).executor
+				: defaultExecutor;
+	}
+
 	protected final Executor defaultExecutor() {
 		return this.defaultExecutor;
 	}
 
-	protected final Map<IFutureListener<? extends IFuture<V>>, Executor> listeners() {
-		return this.listeners;
+	@SuppressWarnings("rawtypes")
+	interface RegistrationVisitor {
+
+		void visit(Object registration, IFutureListener listener,
+				Executor executor);
+	}
+
+	/**
+	 * Depth of synchronous listener notifications on a thread, and the
+	 * notifications deferred because the depth reached
+	 * {@link #MAX_NOTIFICATION_DEPTH}
+	 */
+	private static final class NotificationStack {
+
+		final ArrayDeque<Runnable> pending = new ArrayDeque<>();
+		int depth;
+
+		void drain() {
+			Runnable task;
+			while ((task = pending.poll()) != null) {
+				depth++;
+				try {
+					runSafely(task);
+				} finally {
+					depth--;
+				}
+			}
+		}
+	}
+
+	private static final class Waiter {
+
+		volatile Thread thread = Thread.currentThread();
+		volatile Waiter next;
+	}
+
+	/**
+	 * An immutable node of the inline attachment chain
+	 */
+	private static final class Attachment implements Serializable {
+
+		private static final long serialVersionUID = -3517361873932917473L;
+
+		final String name;
+		final Object value;
+		final Attachment next;
+
+		Attachment(String name, Object value, Attachment next) {
+			this.name = name;
+			this.value = value;
+			this.next = next;
+		}
+
+		Attachment without(String name) {
+			if (this.name.equals(name)) {
+				return next;
+			}
+			return new Attachment(this.name, value,
+					next == null ? null : next.without(name));
+		}
+	}
+
+	/**
+	 * A listener registered with an executor other than the default one
+	 */
+	@SuppressWarnings("rawtypes")
+	private static final class ListenerEntry {
+
+		final IFutureListener listener;
+		final Executor executor;
+
+		ListenerEntry(IFutureListener listener, Executor executor) {
+			this.listener = listener;
+			this.executor = executor;
+		}
 	}
 
 	private static final class CauseHolder implements Serializable {
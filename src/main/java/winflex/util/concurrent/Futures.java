@@ -0,0 +1,507 @@
+package winflex.util.concurrent;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+/**
+ * Implementations of the {@link IFuture} combinators, and aggregates over
+ * several futures that count completions atomically without locking.
+ * <p>
+ * Each stage is a single object acting as the resulting promise, the
+ * listener on its source and the task that computes it. Stages completed
+ * synchronously run inline and share the per-thread depth bound of
+ * {@link DefaultPromise} listener notification. Past it they are deferred to
+ * the outermost notification on the thread, so completing the head of a
+ * long chain does not overflow the stack. A thread that blocks on a
+ * {@link DefaultPromise} first runs the notifications deferred on it, so
+ * waiting inside a listener or stage for a stage on an already completed
+ * future does not deadlock
+ *
+ * @author winflex
+ */
+public final class Futures {
+
+	/**
+	 * Returns a future completed when all the given futures are done. It fails
+	 * with the first failure once all are done
+	 */
+	public static IFuture<Void> allOf(IFuture<?>... futures) {
+		return allOf(false, futures);
+	}
+
+	/**
+	 * @param failFast
+	 *            fail as soon as any of the futures fails instead of waiting
+	 *            for the others
+	 */
+	public static IFuture<Void> allOf(boolean failFast, IFuture<?>... futures) {
+		final AllOf all = new AllOf(futures.length, failFast).completeIfEmpty();
+		for (IFuture<?> f : futures) {
+			f.addListener(listener(all));
+		}
+		return all;
+	}
+
+	/**
+	 * Returns a future completed the same way as the first of the given
+	 * futures to complete
+	 */
+	@SafeVarargs
+	public static <V> IFuture<V> anyOf(IFuture<? extends V>... futures) {
+		if (futures.length == 0) {
+			throw new IllegalArgumentException("futures is empty");
+		}
+		final AnyOf<V> any = new AnyOf<>();
+		for (IFuture<? extends V> f : futures) {
+			if (any.isDone()) {
+				break;
+			}
+			f.addListener(listener(any));
+		}
+		return any;
+	}
+
+	/**
+	 * Returns a future completed with the results of the first {@code n}
+	 * futures to succeed, in completion order. It fails once too many have
+	 * failed for {@code n} to succeed
+	 */
+	@SafeVarargs
+	public static <V> IFuture<List<V>> firstSuccessful(int n,
+			IFuture<? extends V>... futures) {
+		if (n <= 0 || n > futures.length) {
+			throw new IllegalArgumentException("n: " + n
+					+ " (expected: 0 < n <= " + futures.length + ")");
+		}
+		final FirstSuccessful<V> first = new FirstSuccessful<>(n,
+				futures.length);
+		for (IFuture<? extends V> f : futures) {
+			if (first.isDone()) {
+				break;
+			}
+			f.addListener(listener(first));
+		}
+		return first;
+	}
+
+	/**
+	 * Returns a future completed with the results of all the given futures,
+	 * in the same order, collected into an array sized up front
+	 */
+	public static <V> IFuture<List<V>> collectAll(
+			List<? extends IFuture<? extends V>> futures) {
+		return collectAll(futures, false);
+	}
+
+	/**
+	 * @param failFast
+	 *            fail as soon as any of the futures fails instead of waiting
+	 *            for the others
+	 */
+	public static <V> IFuture<List<V>> collectAll(
+			List<? extends IFuture<? extends V>> futures, boolean failFast) {
+		final CollectAll<V> all = new CollectAll<V>(futures.size(), failFast)
+				.completeIfEmpty();
+		for (int i = 0; i < futures.size(); i++) {
+			futures.get(i).addListener(listener(all.slot(i)));
+		}
+		return all;
+	}
+
+	static <V, U> IFuture<U> map(IFuture<V> source,
+			Function<? super V, ? extends U> fn, Executor executor) {
+		return Transform.attach(source, Transform.MAP, fn, executor);
+	}
+
+	static <V> IFuture<V> recover(IFuture<V> source,
+			Function<? super Throwable, ? extends V> fn, Executor executor) {
+		return Transform.attach(source, Transform.RECOVER, fn, executor);
+	}
+
+	static <V> IFuture<V> whenComplete(IFuture<V> source,
+			BiConsumer<? super V, ? super Throwable> action, Executor executor) {
+		return Transform.attach(source, Transform.WHEN_COMPLETE, action,
+				executor);
+	}
+
+	static <V, U> IFuture<U> flatMap(IFuture<V> source,
+			Function<? super V, ? extends IFuture<U>> fn, Executor executor) {
+		Objects.requireNonNull(fn, "fn");
+		final Compose<V, U> stage = new Compose<>(source, fn);
+		source.addListener(listener(stage), executor);
+		return stage;
+	}
+
+	static <V, U, R> IFuture<R> zip(IFuture<V> source, IFuture<U> other,
+			BiFunction<? super V, ? super U, ? extends R> fn, Executor executor) {
+		Objects.requireNonNull(other, "other");
+		Objects.requireNonNull(fn, "fn");
+		final Zip<V, U, R> stage = new Zip<>(source, other, fn);
+		source.addListener(listener(stage), executor);
+		other.addListener(listener(stage), executor);
+		return stage;
+	}
+
+	/**
+	 * Narrows a listener accepting any future to the type expected by
+	 * {@link IFuture#addListener(IFutureListener)}
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private static <F extends IFuture<?>> IFutureListener<F> listener(
+			IFutureListener<IFuture<?>> listener) {
+		return (IFutureListener) listener;
+	}
+
+	/**
+	 * map, recover and whenComplete
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private static final class Transform<V, U> extends DefaultPromise<U>
+			implements IFutureListener<IFuture<V>>, Runnable {
+
+		private static final long serialVersionUID = 4470567213437405385L;
+
+		static final int MAP = 0, RECOVER = 1, WHEN_COMPLETE = 2;
+
+		final IFuture<V> source;
+		final int kind;
+		final Object fn;
+
+		private Transform(IFuture<V> source, int kind, Object fn) {
+			this.source = source;
+			this.kind = kind;
+			this.fn = fn;
+		}
+
+		static <V, U> IFuture<U> attach(IFuture<V> source, int kind, Object fn,
+				Executor executor) {
+			Objects.requireNonNull(fn, "fn");
+			final Transform<V, U> stage = new Transform<>(source, kind, fn);
+			source.addListener(stage, executor);
+			return stage;
+		}
+
+		@Override
+		public void operationCompleted(IFuture<V> future) {
+			DefaultPromise.runNotification(this);
+		}
+
+		@Override
+		public void run() {
+			final Throwable cause = source.cause();
+			try {
+				switch (kind) {
+				case MAP:
+					if (cause != null) {
+						setFailure(cause);
+					} else {
+						setSuccess(((Function) fn).apply(source.getNow()));
+					}
+					break;
+				case RECOVER:
+					if (cause != null) {
+						setSuccess(((Function) fn).apply(cause));
+					} else {
+						setSuccess(source.getNow());
+					}
+					break;
+				default:
+					((BiConsumer) fn).accept(source.getNow(), cause);
+					if (cause != null) {
+						setFailure(cause);
+					} else {
+						setSuccess(source.getNow());
+					}
+				}
+			} catch (Throwable t) {
+				setFailure(t);
+			}
+		}
+	}
+
+	/**
+	 * flatMap, completes with the result of the future returned
+	 * by the function
+	 */
+	private static final class Compose<V, U> extends DefaultPromise<U>
+			implements IFutureListener<IFuture<?>>, Runnable {
+
+		private static final long serialVersionUID = -2212287766311036045L;
+
+		final IFuture<V> source;
+		final Function<? super V, ? extends IFuture<U>> fn;
+		IFuture<?> completed;
+
+		Compose(IFuture<V> source, Function<? super V, ? extends IFuture<U>> fn) {
+			this.source = source;
+			this.fn = fn;
+		}
+
+		@Override
+		public void operationCompleted(IFuture<?> future) {
+			completed = future;
+			DefaultPromise.runNotification(this);
+		}
+
+		@Override
+		public void run() {
+			final IFuture<?> completed = this.completed;
+			final Throwable cause = completed.cause();
+			if (cause != null) {
+				setFailure(cause);
+			} else if (completed != source) {
+				setSuccess(completed.getNow());
+			} else {
+				final IFuture<U> inner;
+				try {
+					inner = Objects.requireNonNull(fn.apply(source.getNow()),
+							"fn returned null");
+				} catch (Throwable t) {
+					setFailure(t);
+					return;
+				}
+				if (inner == source || inner == this) {
+					// would be taken for the source completing again, or never
+					// complete
+					setFailure(new IllegalStateException(
+							"fn returned the source future or the stage itself"));
+					return;
+				}
+				inner.addListener(listener(this));
+			}
+		}
+	}
+
+	/**
+	 * Combines two futures, fails as soon as either of them fails
+	 */
+	private static final class Zip<V, U, R> extends DefaultPromise<R>
+			implements IFutureListener<IFuture<?>>, Runnable {
+
+		private static final long serialVersionUID = 4802963735734187211L;
+
+		@SuppressWarnings("rawtypes")
+		private static final AtomicIntegerFieldUpdater<Zip> PENDING = AtomicIntegerFieldUpdater
+				.newUpdater(Zip.class, "pending");
+
+		final IFuture<V> first;
+		final IFuture<U> second;
+		final BiFunction<? super V, ? super U, ? extends R> fn;
+		volatile int pending = 2;
+		volatile Throwable cause;
+
+		Zip(IFuture<V> first, IFuture<U> second,
+				BiFunction<? super V, ? super U, ? extends R> fn) {
+			this.first = first;
+			this.second = second;
+			this.fn = fn;
+		}
+
+		@Override
+		public void operationCompleted(IFuture<?> future) {
+			final Throwable cause = future.cause();
+			if (cause != null) {
+				if (this.cause == null) {
+					this.cause = cause;
+					DefaultPromise.runNotification(this);
+				}
+			} else if (PENDING.decrementAndGet(this) == 0) {
+				DefaultPromise.runNotification(this);
+			}
+		}
+
+		@Override
+		public void run() {
+			if (isDone()) {
+				return;
+			}
+			final Throwable cause = this.cause;
+			if (cause != null) {
+				setFailure(cause);
+				return;
+			}
+			try {
+				setSuccess(fn.apply(first.getNow(), second.getNow()));
+			} catch (Throwable t) {
+				setFailure(t);
+			}
+		}
+	}
+
+	/**
+	 * Base of the aggregates, counts the pending futures atomically and keeps
+	 * the first failure
+	 */
+	private abstract static class Aggregate<V> extends DefaultPromise<V> {
+
+		private static final long serialVersionUID = -5426815047453922542L;
+
+		@SuppressWarnings("rawtypes")
+		private static final AtomicIntegerFieldUpdater<Aggregate> PENDING = AtomicIntegerFieldUpdater
+				.newUpdater(Aggregate.class, "pending");
+
+		@SuppressWarnings("rawtypes")
+		private static final AtomicReferenceFieldUpdater<Aggregate, Throwable> FAILURE = AtomicReferenceFieldUpdater
+				.newUpdater(Aggregate.class, Throwable.class, "failure");
+
+		final boolean failFast;
+		volatile int pending;
+		volatile Throwable failure;
+
+		Aggregate(int count, boolean failFast) {
+			this.pending = count;
+			this.failFast = failFast;
+		}
+
+		/**
+		 * Completes an aggregate over no futures, to be called once the
+		 * subclass is constructed
+		 */
+		final <A extends Aggregate<V>> A completeIfEmpty() {
+			if (pending == 0) {
+				setSuccess(result());
+			}
+			@SuppressWarnings("unchecked")
+			final A self = (A) this;
+			return self;
+		}
+
+		final void done(IFuture<?> future) {
+			final Throwable cause = future.cause();
+			if (cause != null && FAILURE.compareAndSet(this, null, cause)
+					&& failFast) {
+				setFailure(cause);
+			}
+			if (PENDING.decrementAndGet(this) == 0) {
+				final Throwable failure = this.failure;
+				if (failure != null) {
+					setFailure(failure);
+				} else {
+					setSuccess(result());
+				}
+			}
+		}
+
+		abstract Object result();
+	}
+
+	private static final class AllOf extends Aggregate<Void> implements
+			IFutureListener<IFuture<?>> {
+
+		private static final long serialVersionUID = 2935431009433925014L;
+
+		AllOf(int count, boolean failFast) {
+			super(count, failFast);
+		}
+
+		@Override
+		public void operationCompleted(IFuture<?> future) {
+			done(future);
+		}
+
+		@Override
+		Object result() {
+			return null;
+		}
+	}
+
+	private static final class CollectAll<V> extends Aggregate<List<V>> {
+
+		private static final long serialVersionUID = -1520049521124004337L;
+
+		final Object[] results;
+
+		CollectAll(int count, boolean failFast) {
+			super(count, failFast);
+			this.results = new Object[count];
+		}
+
+		/**
+		 * The listener storing the result of the future at {@code index}
+		 */
+		IFutureListener<IFuture<?>> slot(int index) {
+			return future -> {
+				if (future.isSuccessful()) {
+					results[index] = future.getNow();
+				}
+				done(future);
+			};
+		}
+
+		@Override
+		Object result() {
+			// The final decrement of pending publishes all the stores
+			return Arrays.asList(results);
+		}
+	}
+
+	private static final class AnyOf<V> extends DefaultPromise<V> implements
+			IFutureListener<IFuture<?>> {
+
+		private static final long serialVersionUID = 6118929916497960815L;
+
+		@Override
+		public void operationCompleted(IFuture<?> future) {
+			if (future.isSuccessful()) {
+				setSuccess(future.getNow());
+			} else {
+				setFailure(future.cause());
+			}
+		}
+	}
+
+	private static final class FirstSuccessful<V> extends
+			DefaultPromise<List<V>> implements IFutureListener<IFuture<?>> {
+
+		private static final long serialVersionUID = -4893322417212811571L;
+
+		@SuppressWarnings("rawtypes")
+		private static final AtomicIntegerFieldUpdater<FirstSuccessful> SUCCEEDED = AtomicIntegerFieldUpdater
+				.newUpdater(FirstSuccessful.class, "succeeded");
+
+		@SuppressWarnings("rawtypes")
+		private static final AtomicIntegerFieldUpdater<FirstSuccessful> STORED = AtomicIntegerFieldUpdater
+				.newUpdater(FirstSuccessful.class, "stored");
+
+		@SuppressWarnings("rawtypes")
+		private static final AtomicIntegerFieldUpdater<FirstSuccessful> FAILED = AtomicIntegerFieldUpdater
+				.newUpdater(FirstSuccessful.class, "failed");
+
+		final Object[] results;
+		final int tolerated;
+		volatile int succeeded;
+		volatile int stored;
+		volatile int failed;
+
+		FirstSuccessful(int n, int count) {
+			this.results = new Object[n];
+			this.tolerated = count - n;
+		}
+
+		@SuppressWarnings("unchecked")
+		@Override
+		public void operationCompleted(IFuture<?> future) {
+			if (future.isSuccessful()) {
+				final int slot = SUCCEEDED.getAndIncrement(this);
+				if (slot < results.length) {
+					results[slot] = future.getNow();
+					if (STORED.incrementAndGet(this) == results.length) {
+						setSuccess(Arrays.asList(results));
+					}
+				}
+			} else if (FAILED.incrementAndGet(this) > tolerated) {
+				setFailure(future.cause());
+			}
+		}
+	}
+
+	private Futures() {
+	}
+}
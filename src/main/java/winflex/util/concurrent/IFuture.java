@@ -6,6 +6,9 @@ import java.util.concurrent.Executor;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Function;
 
 /**
  * An enhanced {@link Future} that supports callback and attachments
@@ -47,4 +50,72 @@ public interface IFuture<V> extends Future<V> {
 	Map<String, Object> getAttachments();
 
 	IFuture<V> setAttachment(String name, Object value);
+
+	/**
+	 * Returns a future completed with the result of applying {@code fn} to
+	 * this future's result, or with this future's failure. {@code fn} runs on
+	 * the thread completing this future
+	 */
+	default <U> IFuture<U> map(Function<? super V, ? extends U> fn) {
+		return Futures.map(this, fn, SynchronousExecutor.INSTANCE);
+	}
+
+	default <U> IFuture<U> map(Function<? super V, ? extends U> fn,
+			Executor executor) {
+		return Futures.map(this, fn, executor);
+	}
+
+	/**
+	 * Returns a future completed with the result of the future returned by
+	 * {@code fn}, or with this future's failure
+	 */
+	default <U> IFuture<U> flatMap(Function<? super V, ? extends IFuture<U>> fn) {
+		return Futures.flatMap(this, fn, SynchronousExecutor.INSTANCE);
+	}
+
+	default <U> IFuture<U> flatMap(
+			Function<? super V, ? extends IFuture<U>> fn, Executor executor) {
+		return Futures.flatMap(this, fn, executor);
+	}
+
+	/**
+	 * Returns a future completed with {@code fn} applied to the results of
+	 * both futures, or with the first failure of either
+	 */
+	default <U, R> IFuture<R> zip(IFuture<U> other,
+			BiFunction<? super V, ? super U, ? extends R> fn) {
+		return Futures.zip(this, other, fn, SynchronousExecutor.INSTANCE);
+	}
+
+	default <U, R> IFuture<R> zip(IFuture<U> other,
+			BiFunction<? super V, ? super U, ? extends R> fn, Executor executor) {
+		return Futures.zip(this, other, fn, executor);
+	}
+
+	/**
+	 * Returns a future completed with this future's result, or with
+	 * {@code fn} applied to its failure
+	 */
+	default IFuture<V> recover(Function<? super Throwable, ? extends V> fn) {
+		return Futures.recover(this, fn, SynchronousExecutor.INSTANCE);
+	}
+
+	default IFuture<V> recover(Function<? super Throwable, ? extends V> fn,
+			Executor executor) {
+		return Futures.recover(this, fn, executor);
+	}
+
+	/**
+	 * Runs {@code action} with the result or failure of this future and
+	 * returns a future completed the same way after it returns
+	 */
+	default IFuture<V> whenComplete(
+			BiConsumer<? super V, ? super Throwable> action) {
+		return Futures.whenComplete(this, action, SynchronousExecutor.INSTANCE);
+	}
+
+	default IFuture<V> whenComplete(
+			BiConsumer<? super V, ? super Throwable> action, Executor executor) {
+		return Futures.whenComplete(this, action, executor);
+	}
 }
@@ -0,0 +1,88 @@
+package winflex.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class FeederTest {
+
+    @Test
+    public void splitsLinesAndSkipsBlankLines() throws IOException {
+        assertEquals(Arrays.asList("a", "bc", "a somewhat longer line", "d\r", "e", "f"),
+                lines("a\nbc\r\n\n\r\na somewhat longer line\nd\r\r\n\n\ne\r\nf\r"));
+        assertEquals(Arrays.asList("12345678", "x"), lines("12345678\n\nx"));
+        assertEquals(Arrays.<String>asList(), lines("\n\r\n\n"));
+    }
+
+    @Test
+    public void matchesByteByByteScan() throws IOException {
+        final StringBuilder sb = new StringBuilder();
+        final List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            final StringBuilder line = new StringBuilder();
+            for (int j = 0; j < i % 23; j++) {
+                line.append((char) ('a' + (i + j) % 26));
+            }
+            if (line.length() > 0) {
+                expected.add(line.toString());
+            }
+            sb.append(line).append(i % 3 == 0 ? "\r\n" : "\n");
+        }
+        assertEquals(expected, lines(sb.toString()));
+    }
+
+    @Test
+    public void readsLengthPrefixedRecords() throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(64);
+        for (String s : new String[] { "one", "", "three" }) {
+            buffer.putInt(s.length()).put(s.getBytes(StandardCharsets.UTF_8));
+        }
+        final Path path = Files.createTempFile("feeder", ".bin");
+        try {
+            Files.write(path, Arrays.copyOf(buffer.array(), buffer.position()));
+            try (Feeder feeder = Feeder.lengthPrefixed(path)) {
+                assertEquals(3, feeder.size());
+                assertEquals("one", string(feeder.next()));
+                assertEquals("", string(feeder.next()));
+                assertEquals("three", string(feeder.next()));
+                assertNull(feeder.next());
+            }
+        } finally {
+            Files.delete(path);
+        }
+    }
+
+    private static List<String> lines(String content) throws IOException {
+        final Path path = Files.createTempFile("feeder", ".csv");
+        try {
+            Files.write(path, content.getBytes(StandardCharsets.UTF_8));
+            try (Feeder feeder = Feeder.csv(path)) {
+                final List<String> lines = new ArrayList<>();
+                ByteBuffer record;
+                while ((record = feeder.next()) != null) {
+                    lines.add(string(record));
+                }
+                assertEquals(lines.size(), feeder.size());
+                return lines;
+            }
+        } finally {
+            Files.delete(path);
+        }
+    }
+
+    private static String string(ByteBuffer record) {
+        final byte[] bytes = new byte[record.remaining()];
+        record.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,129 @@
+package winflex.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.net.ConnectException;
+import java.net.ServerSocket;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+import winflex.util.LoadCoordinator.Plan;
+import winflex.util.LoadRunner.Report;
+import winflex.util.LoadRunner.Result;
+
+public class LoadCoordinatorTest {
+
+    @Test(timeout = 30000)
+    public void mergesTwoLocalAgents() throws Exception {
+        final int port;
+        try (ServerSocket s = new ServerSocket(0)) {
+            port = s.getLocalPort();
+        }
+        final ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            final Future<Report> coordinator = executor.submit(() -> LoadCoordinator.listen(port, 2)
+                    .plan(LoadRunner.builder().threads(4).millis(10000).reportInterval(100).iterations(25)
+                            .thinkTime(ThinkTime.fixed(1, TimeUnit.MILLISECONDS)))
+                    .startDelay(100).reportTo(new ByteArrayOutputStream()).run());
+
+            final AtomicLong calls1 = new AtomicLong(), calls2 = new AtomicLong();
+            final Future<Result> agent1 = executor.submit(agent(port, calls1));
+            final Future<Result> agent2 = executor.submit(agent(port, calls2));
+
+            final Report merged = coordinator.get();
+            final Result r1 = agent1.get(), r2 = agent2.get();
+            assertNotNull(merged);
+
+            // 4个线程平分给两个agent, 每个worker迭代25次
+            assertEquals(50, calls1.get());
+            assertEquals(50, calls2.get());
+            assertEquals(100, merged.totalSuccess());
+            assertEquals(r1.report().totalSuccess() + r2.report().totalSuccess(), merged.totalSuccess());
+            assertEquals(0, merged.totalFailure() + merged.totalError());
+            assertEquals(r1.report().cumulativeHistogram().getTotalCount()
+                    + r2.report().cumulativeHistogram().getTotalCount(), merged.cumulativeHistogram()
+                    .getTotalCount());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void encodesPlanWithoutJavaSerialization() throws Exception {
+        final LoadRunner.Config config = LoadRunner.builder().threads(8).millis(60000).warmup(1000)
+                .profile(LoadProfile.linear(0, 8, 30000).then(LoadProfile.constant(8, 30000)))
+                .thinkTime(ThinkTime.uniform(1, 5, TimeUnit.MILLISECONDS)).pacing(10).iterations(100).config;
+        final Plan sent = Plan.split(config, 2)[1];
+        sent.startAtMillis = 42;
+
+        final Plan received = Plan.readFrom(new DataInputStream(new ByteArrayInputStream(encode(sent))));
+        assertEquals(1, received.index);
+        assertEquals(42, received.startAtMillis);
+        assertEquals(4, received.threads);
+        assertEquals(60000, received.millis);
+        assertEquals(1000, received.warmupMillis);
+        assertEquals(10, received.pacingMillis);
+        assertEquals(100, received.iterations);
+        for (long t = 0; t <= 60000; t += 5000) {
+            final long nanos = TimeUnit.MILLISECONDS.toNanos(t);
+            assertEquals(sent.profile.valueAt(nanos), received.profile.valueAt(nanos), 1e-9);
+        }
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(1), ((ThinkTime.Uniform) received.thinkTime).minNanos);
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(5), ((ThinkTime.Uniform) received.thinkTime).maxNanos);
+    }
+
+    @Test
+    public void rejectsInvalidPlan() throws Exception {
+        final Plan plan = Plan.split(LoadRunner.builder().threads(2).millis(1000).config, 1)[0];
+        plan.warmupMillis = 1000;
+        try {
+            Plan.readFrom(new DataInputStream(new ByteArrayInputStream(encode(plan))));
+            fail("expected IOException");
+        } catch (IOException e) {
+            // 预热时间不小于运行时间
+        }
+
+        final ByteArrayOutputStream serialized = new ByteArrayOutputStream();
+        new ObjectOutputStream(serialized).writeObject("not a plan");
+        try {
+            Plan.readFrom(new DataInputStream(new ByteArrayInputStream(serialized.toByteArray())));
+            fail("expected IOException");
+        } catch (IOException e) {
+            // Java序列化的数据不被接受
+        }
+    }
+
+    private static byte[] encode(Plan plan) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        plan.writeTo(new DataOutputStream(bytes));
+        return bytes.toByteArray();
+    }
+
+    private static Callable<Result> agent(int port, AtomicLong calls) {
+        return () -> {
+            while (true) {
+                try {
+                    return LoadAgent.run("127.0.0.1", port, LoadRunner.builder()
+                            .action(() -> calls.incrementAndGet() > 0).reportTo(new ByteArrayOutputStream()));
+                } catch (ConnectException e) {
+                    // 协调者还没开始监听
+                    Thread.sleep(20);
+                }
+            }
+        };
+    }
+}
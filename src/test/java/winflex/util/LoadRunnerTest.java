@@ -0,0 +1,65 @@
+package winflex.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+import winflex.util.LoadRunner.Reporter;
+import winflex.util.LoadRunner.Transaction;
+import winflex.util.concurrent.DefaultPromise;
+
+public class LoadRunnerTest {
+
+    @Test
+    public void allocatesStripesOnlyForAsyncOrVirtualWorkers() {
+        final Reporter sync = new Reporter(LoadRunner.builder().threads(1).millis(1000).action(() -> true)
+                .config.validate());
+        assertNull(sync.stats[0].stripedRecorders);
+
+        final Reporter async = new Reporter(LoadRunner.builder().threads(1).millis(1000)
+                .asyncAction(() -> new DefaultPromise<Boolean>().setSuccess(true)).config.validate());
+        assertNotNull(async.stats[0].stripedRecorders);
+    }
+
+    @Test(timeout = 30000)
+    public void stripedRecordingKeepsEveryValue() throws Exception {
+        final Reporter reporter = new Reporter(LoadRunner.builder().threads(1).millis(1000)
+                .asyncAction(() -> new DefaultPromise<Boolean>().setSuccess(true)).config.validate());
+        final Transaction tx = reporter.stats[0].transaction;
+        final int threads = 8, perThread = 20000;
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            final CyclicBarrier barrier = new CyclicBarrier(threads);
+            final List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                futures.add(executor.submit(() -> {
+                    barrier.await();
+                    for (int i = 0; i < perThread; i++) {
+                        reporter.recordCallback(tx, i & 1023);
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> f : futures) {
+                f.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        final Histogram total = new Histogram();
+        for (Histogram.Recorder r : reporter.stats[0].stripedRecorders) {
+            r.addTo(total);
+        }
+        assertEquals(threads * perThread, total.getTotalCount());
+    }
+}
@@ -0,0 +1,53 @@
+package winflex.util;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.Test;
+
+public class ReportSinksTest {
+
+    @Test
+    public void flushesButDoesNotCloseCallerStream() throws IOException {
+        for (int i = 0; i < 3; i++) {
+            final TrackingStream out = new TrackingStream();
+            final ReportSink sink = i == 0 ? ReportSinks.csv(out)
+                    : i == 1 ? ReportSinks.jsonLines(out) : ReportSinks.histogramLog(out);
+            sink.close();
+            assertTrue(out.flushed);
+            assertFalse(out.closed);
+        }
+    }
+
+    @Test
+    public void closesFileItOpened() throws IOException {
+        final Path path = Files.createTempFile("report", ".csv");
+        try {
+            final ReportSinks.ChannelSink sink = (ReportSinks.ChannelSink) ReportSinks.csv(path);
+            sink.close();
+            assertFalse(sink.channel.isOpen());
+        } finally {
+            Files.delete(path);
+        }
+    }
+
+    static final class TrackingStream extends ByteArrayOutputStream {
+
+        boolean flushed, closed;
+
+        @Override
+        public void flush() {
+            flushed = true;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package winflex.util.concurrent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class CompletablePromiseTest {
+
+	@Test
+	public void removedListenerIsNotNotified() {
+		final CompletablePromise<String> promise = new CompletablePromise<>();
+		final AtomicInteger calls = new AtomicInteger();
+		final IFutureListener<IFuture<String>> listener = f -> calls
+				.incrementAndGet();
+		promise.addListener(listener);
+		promise.addListener(listener);
+		assertSame(promise, promise.removeListener(listener));
+		promise.setSuccess("done");
+		assertEquals(1, calls.get());
+	}
+
+	@Test
+	public void removingUnknownListenerIsIgnored() {
+		final CompletablePromise<String> promise = new CompletablePromise<>();
+		final AtomicInteger calls = new AtomicInteger();
+		promise.addListener(f -> calls.incrementAndGet());
+		promise.removeListener(f -> {
+		});
+		promise.setSuccess("done");
+		assertEquals(1, calls.get());
+	}
+
+	@Test
+	public void notifiesListenersInRegistrationOrder() {
+		final CompletablePromise<String> promise = new CompletablePromise<>();
+		final List<Integer> order = new ArrayList<>();
+		final IFutureListener<IFuture<String>> removed = f -> order.add(-1);
+		promise.addListener(f -> {
+			order.add(0);
+			// added while notifying, runs after those already queued
+			promise.addListener(g -> order.add(4));
+		});
+		promise.addListener(removed);
+		promise.addListener(f -> order.add(1));
+		promise.addListener(f -> order.add(2), Runnable::run);
+		promise.addListener(f -> order.add(3));
+		promise.removeListener(removed);
+		promise.setSuccess("done");
+		promise.addListener(f -> order.add(5));
+		assertEquals(Arrays.asList(0, 1, 2, 3, 4, 5), order);
+	}
+
+	@Test
+	public void sharesCompletionWithCompletableFutureView() {
+		final CompletablePromise<String> promise = new CompletablePromise<>();
+		final CompletableFuture<String> future = promise;
+		final AtomicInteger calls = new AtomicInteger();
+		promise.addListener(f -> calls.incrementAndGet());
+		future.complete("done");
+		assertTrue(promise.isSuccessful());
+		assertEquals("done", promise.getNow());
+		assertEquals(1, calls.get());
+	}
+}
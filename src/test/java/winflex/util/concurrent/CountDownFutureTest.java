@@ -0,0 +1,68 @@
+package winflex.util.concurrent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+public class CountDownFutureTest {
+
+	@Test(timeout = 60000)
+	public void publishesMonotonicProgressUnderConcurrentCountDown()
+			throws Exception {
+		final int threads = 4, perThread = 500;
+		final ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			for (int round = 0; round < 20; round++) {
+				final CountDownFuture future = new CountDownFuture(threads
+						* perThread);
+				final List<Long> progress = new CopyOnWriteArrayList<>();
+				future.addListener(new IProgressiveFutureListener<IProgressiveFuture<Integer>>() {
+
+					@Override
+					public void operationProgressed(
+							IProgressiveFuture<Integer> f, long p, long total) {
+						progress.add(p);
+					}
+
+					@Override
+					public void operationCompleted(IProgressiveFuture<Integer> f) {
+					}
+				});
+
+				final CyclicBarrier barrier = new CyclicBarrier(threads);
+				final List<Future<?>> futures = new ArrayList<>();
+				for (int t = 0; t < threads; t++) {
+					futures.add(executor.submit(() -> {
+						barrier.await();
+						for (int i = 0; i < perThread; i++) {
+							future.countDown();
+						}
+						return null;
+					}));
+				}
+				for (Future<?> f : futures) {
+					f.get();
+				}
+
+				assertTrue(future.isDone());
+				assertEquals(0, future.getCount());
+				for (int i = 1; i < progress.size(); i++) {
+					assertTrue("round " + round + ": " + progress.get(i - 1)
+							+ " then " + progress.get(i),
+							progress.get(i) > progress.get(i - 1));
+				}
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+}
@@ -0,0 +1,158 @@
+package winflex.util.concurrent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class DefaultProgressivePromiseTest {
+
+	@Test(timeout = 10000)
+	public void deliversUpdateSkippedByStep() throws Exception {
+		final DefaultProgressivePromise<Void> promise = new DefaultProgressivePromise<Void>()
+				.throttleProgress(0, TimeUnit.MILLISECONDS, 0.1);
+		final List<Long> seen = record(promise, SynchronousExecutor.INSTANCE);
+		for (int i = 0; i <= 95; i++) {
+			promise.setProgress(i, 100);
+		}
+		assertEquals(Long.valueOf(90), last(seen));
+		waitFor(seen, 95);
+		assertTrue(seen.size() <= 12);
+	}
+
+	@Test(timeout = 10000)
+	public void deliversUpdateSkippedByInterval() throws Exception {
+		final DefaultProgressivePromise<Void> promise = new DefaultProgressivePromise<Void>()
+				.throttleProgress(50, TimeUnit.MILLISECONDS, 0);
+		final List<Long> seen = record(promise, SynchronousExecutor.INSTANCE);
+		for (int i = 0; i < 100000; i++) {
+			promise.setProgress(i, 100000);
+		}
+		waitFor(seen, 99999);
+		assertTrue(seen.size() < 100);
+	}
+
+	@Test
+	public void queuesOneTaskPerRegistrationAndReportsLatest() {
+		final DefaultProgressivePromise<Void> promise = new DefaultProgressivePromise<>();
+		final ManualExecutor first = new ManualExecutor();
+		final ManualExecutor second = new ManualExecutor();
+		final List<Long> seen = new CopyOnWriteArrayList<>();
+		final IProgressiveFutureListener<IProgressiveFuture<Void>> listener = listener(seen);
+		promise.addListener(listener, first);
+		promise.addListener(listener, second);
+
+		for (int i = 1; i <= 1000; i++) {
+			promise.setProgress(i, 1000);
+		}
+		assertEquals(1, first.tasks.size());
+		assertEquals(1, second.tasks.size());
+
+		first.runAll();
+		second.runAll();
+		assertEquals(2, seen.size());
+		assertEquals(Long.valueOf(1000), seen.get(0));
+		assertEquals(Long.valueOf(1000), seen.get(1));
+	}
+
+	@Test
+	public void dropsQueuedProgressAfterCompletion() {
+		final DefaultProgressivePromise<Void> promise = new DefaultProgressivePromise<>();
+		final ManualExecutor executor = new ManualExecutor();
+		final List<Long> seen = record(promise, executor);
+		promise.setProgress(1, 2);
+		promise.setSuccess(null);
+		executor.runAll();
+		assertTrue(seen.isEmpty());
+	}
+
+	@Test
+	public void dropsProgressTasksOnCompletion() {
+		final DefaultProgressivePromise<Void> promise = new DefaultProgressivePromise<>();
+		final ManualExecutor executor = new ManualExecutor();
+		record(promise, executor);
+		promise.setProgress(1, 2);
+		assertNotNull(promise.progressTasks);
+		promise.setSuccess(null);
+		assertNull(promise.progressTasks);
+	}
+
+	@Test(timeout = 10000)
+	public void deliversSkippedUpdateOnPromiseExecutor() throws Exception {
+		final BlockingQueue<Runnable> tasks = new LinkedBlockingQueue<>();
+		final DefaultProgressivePromise<Void> promise = new DefaultProgressivePromise<Void>(
+				tasks::add).throttleProgress(10, TimeUnit.MILLISECONDS, 0);
+		final List<Long> seen = record(promise, SynchronousExecutor.INSTANCE);
+		promise.setProgress(1, 100);
+		promise.setProgress(2, 100);
+		assertEquals(Arrays.asList(1L), seen);
+
+		// the timer hands the delivery over instead of running the listener
+		final Runnable task = tasks.take();
+		assertEquals(Arrays.asList(1L), seen);
+		task.run();
+		assertEquals(Arrays.asList(1L, 2L), seen);
+	}
+
+	private static List<Long> record(DefaultProgressivePromise<Void> promise,
+			Executor executor) {
+		final List<Long> seen = new CopyOnWriteArrayList<>();
+		promise.addListener(listener(seen), executor);
+		return seen;
+	}
+
+	private static IProgressiveFutureListener<IProgressiveFuture<Void>> listener(
+			List<Long> seen) {
+		return new IProgressiveFutureListener<IProgressiveFuture<Void>>() {
+
+			@Override
+			public void operationProgressed(IProgressiveFuture<Void> future,
+					long progress, long total) {
+				seen.add(progress);
+			}
+
+			@Override
+			public void operationCompleted(IProgressiveFuture<Void> future) {
+			}
+		};
+	}
+
+	private static Long last(List<Long> seen) {
+		return seen.isEmpty() ? null : seen.get(seen.size() - 1);
+	}
+
+	private static void waitFor(List<Long> seen, long progress)
+			throws InterruptedException {
+		while (!Long.valueOf(progress).equals(last(seen))) {
+			Thread.sleep(5);
+		}
+	}
+
+	private static final class ManualExecutor implements Executor {
+
+		final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+
+		@Override
+		public void execute(Runnable command) {
+			tasks.add(command);
+		}
+
+		void runAll() {
+			Runnable task;
+			while ((task = tasks.poll()) != null) {
+				task.run();
+			}
+		}
+	}
+}
@@ -0,0 +1,289 @@
+package winflex.util.concurrent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+public class DefaultPromiseTest {
+
+	@Test
+	public void notifiesListenersInRegistrationOrder() {
+		final DefaultPromise<String> promise = new DefaultPromise<>();
+		final List<Integer> order = new ArrayList<>();
+		for (int i = 0; i < 5; i++) {
+			final int n = i;
+			promise.addListener(f -> order.add(n));
+		}
+		promise.setSuccess("done");
+		assertEquals(Arrays.asList(0, 1, 2, 3, 4), order);
+	}
+
+	@Test
+	public void removesFirstMatchingListener() {
+		final DefaultPromise<String> promise = new DefaultPromise<>();
+		final AtomicInteger calls = new AtomicInteger();
+		final IFutureListener<IFuture<String>> listener = f -> calls
+				.incrementAndGet();
+		promise.addListener(listener);
+		promise.addListener(listener);
+		promise.removeListener(listener);
+		promise.setSuccess("done");
+		assertEquals(1, calls.get());
+	}
+
+	@SuppressWarnings("deprecation")
+	@Test
+	public void listenersReturnsSnapshot() {
+		final DefaultPromise<String> promise = new DefaultPromise<>();
+		final IFutureListener<IFuture<String>> a = f -> {
+		};
+		final IFutureListener<IFuture<String>> b = f -> {
+		};
+		final Executor executor = Runnable::run;
+		promise.addListener(a);
+		promise.addListener(b, executor);
+
+		final Map<IFutureListener<? extends IFuture<String>>, Executor> snapshot = promise
+				.listeners();
+		assertEquals(Arrays.asList(a, b), new ArrayList<>(snapshot.keySet()));
+		assertEquals(SynchronousExecutor.INSTANCE, snapshot.get(a));
+		assertEquals(executor, snapshot.get(b));
+
+		promise.removeListener(a);
+		assertEquals(2, snapshot.size());
+		promise.setSuccess("done");
+		assertTrue(promise.listeners().isEmpty());
+	}
+
+	@Test
+	public void notifiesListenerAddedAfterCompletion() {
+		final DefaultPromise<String> promise = new DefaultPromise<>();
+		promise.setSuccess("done");
+		final AtomicInteger calls = new AtomicInteger();
+		promise.addListener(f -> calls.incrementAndGet());
+		assertEquals(1, calls.get());
+	}
+
+	@Test(timeout = 60000)
+	public void notifiesEachListenerOnceWhenAddedDuringCompletion()
+			throws Exception {
+		final int adders = 3, listenersPerAdder = 50;
+		final ExecutorService executor = Executors
+				.newFixedThreadPool(adders + 1);
+		try {
+			for (int round = 0; round < 2000; round++) {
+				final DefaultPromise<String> promise = new DefaultPromise<>();
+				final AtomicInteger[] calls = new AtomicInteger[adders
+						* listenersPerAdder];
+				for (int i = 0; i < calls.length; i++) {
+					calls[i] = new AtomicInteger();
+				}
+				final CyclicBarrier barrier = new CyclicBarrier(adders + 1);
+				final List<Future<?>> futures = new ArrayList<>();
+				for (int t = 0; t < adders; t++) {
+					final int base = t * listenersPerAdder;
+					futures.add(executor.submit(() -> {
+						barrier.await();
+						for (int i = 0; i < listenersPerAdder; i++) {
+							final AtomicInteger c = calls[base + i];
+							promise.addListener(f -> c.incrementAndGet());
+						}
+						return null;
+					}));
+				}
+				futures.add(executor.submit(() -> {
+					barrier.await();
+					promise.setSuccess("done");
+					return null;
+				}));
+				for (Future<?> f : futures) {
+					f.get();
+				}
+				for (int i = 0; i < calls.length; i++) {
+					assertEquals("round " + round + ", listener " + i, 1,
+							calls[i].get());
+				}
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void notifiesListenerOnItsOwnExecutor() throws Exception {
+		final ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			final DefaultPromise<String> promise = new DefaultPromise<>();
+			final CountDownLatch latch = new CountDownLatch(1);
+			final Thread[] thread = new Thread[1];
+			promise.addListener(f -> {
+				thread[0] = Thread.currentThread();
+				latch.countDown();
+			}, executor);
+			promise.setSuccess("done");
+			latch.await();
+			assertFalse(thread[0] == Thread.currentThread());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test(timeout = 10000)
+	public void timedAwaitTimesOut() throws Exception {
+		final DefaultPromise<String> promise = new DefaultPromise<>();
+		final long start = System.nanoTime();
+		assertFalse(promise.await(50, TimeUnit.MILLISECONDS));
+		assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS
+				.toNanos(50));
+		assertFalse(promise.awaitUninterruptibly(10, TimeUnit.MILLISECONDS));
+		try {
+			promise.get(10, TimeUnit.MILLISECONDS);
+			fail("expected TimeoutException");
+		} catch (TimeoutException e) {
+			// expected
+		}
+
+		// the waiters that timed out must not prevent later completion
+		promise.setSuccess("done");
+		assertTrue(promise.await(0, TimeUnit.MILLISECONDS));
+		assertEquals("done", promise.get(10, TimeUnit.MILLISECONDS));
+	}
+
+	@Test(timeout = 10000)
+	public void awaitThrowsWhenInterrupted() throws Exception {
+		final DefaultPromise<String> promise = new DefaultPromise<>();
+		final CountDownLatch started = new CountDownLatch(1);
+		final AtomicReference<Throwable> thrown = new AtomicReference<>();
+		final Thread waiter = new Thread(() -> {
+			started.countDown();
+			try {
+				promise.await();
+			} catch (Throwable t) {
+				thrown.set(t);
+			}
+		});
+		waiter.start();
+		started.await();
+		waitUntilBlocked(waiter);
+		waiter.interrupt();
+		waiter.join();
+		assertTrue(thrown.get() instanceof InterruptedException);
+		assertFalse(promise.isDone());
+	}
+
+	@Test(timeout = 10000)
+	public void awaitThrowsIfAlreadyInterrupted() {
+		final DefaultPromise<String> promise = new DefaultPromise<>();
+		Thread.currentThread().interrupt();
+		try {
+			promise.await(1, TimeUnit.SECONDS);
+			fail("expected InterruptedException");
+		} catch (InterruptedException e) {
+			assertFalse(Thread.currentThread().isInterrupted());
+		}
+	}
+
+	@Test(timeout = 10000)
+	public void awaitUninterruptiblyKeepsWaitingAndRestoresInterrupt()
+			throws Exception {
+		final DefaultPromise<String> promise = new DefaultPromise<>();
+		final AtomicBoolean interrupted = new AtomicBoolean();
+		final Thread waiter = new Thread(() -> {
+			promise.awaitUninterruptibly();
+			interrupted.set(Thread.currentThread().isInterrupted());
+		});
+		waiter.start();
+		waitUntilBlocked(waiter);
+		waiter.interrupt();
+		Thread.sleep(50);
+		assertTrue(waiter.isAlive());
+
+		promise.setSuccess("done");
+		waiter.join();
+		assertTrue(interrupted.get());
+	}
+
+	@Test(timeout = 60000)
+	public void wakesAllWaiters() throws Exception {
+		final int waiters = 16;
+		final ExecutorService executor = Executors.newFixedThreadPool(waiters);
+		try {
+			for (int round = 0; round < 200; round++) {
+				final DefaultPromise<String> promise = new DefaultPromise<>();
+				final List<Future<String>> results = new ArrayList<>();
+				for (int i = 0; i < waiters; i++) {
+					final boolean timed = i % 2 == 0;
+					results.add(executor.submit(() -> {
+						if (timed) {
+							assertTrue(promise.await(10, TimeUnit.SECONDS));
+						} else {
+							promise.await();
+						}
+						return promise.getNow();
+					}));
+				}
+				promise.setSuccess("round " + round);
+				for (Future<String> f : results) {
+					assertEquals("round " + round, f.get());
+				}
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private static void waitUntilBlocked(Thread t) throws InterruptedException {
+		while (t.getState() != Thread.State.WAITING
+				&& t.getState() != Thread.State.TIMED_WAITING) {
+			Thread.sleep(1);
+		}
+	}
+
+	@Test
+	public void defersSynchronousNotificationsPastMaxDepth() {
+		final int length = 10000;
+		final List<DefaultPromise<Integer>> chain = new ArrayList<>(length);
+		for (int i = 0; i < length; i++) {
+			chain.add(new DefaultPromise<>());
+		}
+		final int[] depth = new int[1];
+		final int[] maxDepth = new int[1];
+		for (int i = 0; i < length - 1; i++) {
+			final DefaultPromise<Integer> next = chain.get(i + 1);
+			chain.get(i).addListener(f -> {
+				maxDepth[0] = Math.max(maxDepth[0], ++depth[0]);
+				try {
+					next.setSuccess(f.getNow() + 1);
+				} finally {
+					depth[0]--;
+				}
+			});
+		}
+
+		chain.get(0).setSuccess(0);
+
+		// the deferred notifications run before the outermost one returns
+		assertEquals(Integer.valueOf(length - 1), chain.get(length - 1)
+				.getNow());
+		assertEquals(16, maxDepth[0]);
+	}
+}
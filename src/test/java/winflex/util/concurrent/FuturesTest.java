@@ -0,0 +1,211 @@
+package winflex.util.concurrent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+public class FuturesTest {
+
+	private static final int CHAIN_LENGTH = 10000;
+
+	// small enough that 10000 recursive stages would overflow it
+	private static final long STACK_SIZE = 256 * 1024;
+
+	@Test(timeout = 30000)
+	public void completesDeepMapChainWithoutStackOverflow() throws Throwable {
+		runWithSmallStack(() -> {
+			final DefaultPromise<Integer> head = new DefaultPromise<>();
+			IFuture<Integer> tail = head;
+			for (int i = 0; i < CHAIN_LENGTH; i++) {
+				tail = tail.map(v -> v + 1);
+			}
+			head.setSuccess(0);
+			assertTrue(tail.isDone());
+			assertEquals(Integer.valueOf(CHAIN_LENGTH), tail.getNow());
+		});
+	}
+
+	@Test(timeout = 30000)
+	public void completesDeepFlatMapChainWithoutStackOverflow()
+			throws Throwable {
+		runWithSmallStack(() -> {
+			final DefaultPromise<Integer> head = new DefaultPromise<>();
+			final DefaultPromise<Integer> gate = new DefaultPromise<>();
+			IFuture<Integer> tail = head;
+			for (int i = 0; i < CHAIN_LENGTH; i++) {
+				tail = tail.flatMap(v -> gate.map(g -> v + g));
+			}
+			head.setSuccess(0);
+			gate.setSuccess(1);
+			assertTrue(tail.isDone());
+			assertEquals(Integer.valueOf(CHAIN_LENGTH), tail.getNow());
+		});
+	}
+
+	@Test(timeout = 30000)
+	public void propagatesFailureThroughDeepChain() throws Throwable {
+		runWithSmallStack(() -> {
+			final DefaultPromise<Integer> head = new DefaultPromise<>();
+			IFuture<Integer> tail = head;
+			for (int i = 0; i < CHAIN_LENGTH; i++) {
+				tail = tail.map(v -> v + 1);
+			}
+			final IFuture<Integer> recovered = tail.recover(t -> -1);
+			final IllegalStateException cause = new IllegalStateException();
+			head.setFailure(cause);
+			assertEquals(cause, tail.cause());
+			assertEquals(Integer.valueOf(-1), recovered.getNow());
+		});
+	}
+
+	@Test(timeout = 10000)
+	public void runsStageOnCompletedFutureInlineInsideAnotherStage()
+			throws Exception {
+		final DefaultPromise<Integer> done = new DefaultPromise<>();
+		done.setSuccess(1);
+		final DefaultPromise<Integer> head = new DefaultPromise<>();
+		final IFuture<Integer> result = head.map(v -> {
+			final IFuture<Integer> inner = done.map(x -> x + v);
+			assertTrue(inner.isDone());
+			try {
+				return inner.get(1, TimeUnit.SECONDS);
+			} catch (Exception e) {
+				throw new RuntimeException(e);
+			}
+		});
+		head.setSuccess(1);
+		assertNull(result.cause());
+		assertEquals(Integer.valueOf(2), result.getNow());
+	}
+
+	@Test(timeout = 10000)
+	public void blocksOnStageInsideListenersNestedPastMaxDepth()
+			throws Exception {
+		final DefaultPromise<Integer> done = new DefaultPromise<>();
+		done.setSuccess(1);
+		// each listener blocks on a stage of a completed future, then
+		// completes the next promise, so one of them blocks at the depth
+		// bound where the stage is deferred rather than run inline
+		final int length = DefaultPromise.MAX_NOTIFICATION_DEPTH + 4;
+		final List<DefaultPromise<Integer>> promises = new ArrayList<>();
+		for (int i = 0; i <= length; i++) {
+			promises.add(new DefaultPromise<>());
+		}
+		final AtomicInteger results = new AtomicInteger();
+		for (int i = 0; i < length; i++) {
+			final DefaultPromise<Integer> next = promises.get(i + 1);
+			promises.get(i).addListener(f -> {
+				final int v = f.get();
+				assertEquals(Integer.valueOf(v + 1), done.map(x -> x + v).get());
+				results.incrementAndGet();
+				next.setSuccess(v + 1);
+			});
+		}
+		promises.get(0).setSuccess(0);
+		assertEquals(length, results.get());
+		assertEquals(Integer.valueOf(length), promises.get(length).getNow());
+	}
+
+	@Test(timeout = 30000)
+	public void boundsStackDepthOfMixedListenerAndMapChain() {
+		// listeners and stages count against one bound, so no more than
+		// MAX_NOTIFICATION_DEPTH of them are ever nested on the stack, and
+		// the stack stops growing once a chain is longer than that
+		final int[] shortChain = mixedChainDepth(
+				DefaultPromise.MAX_NOTIFICATION_DEPTH * 4);
+		final int[] longChain = mixedChainDepth(CHAIN_LENGTH);
+		assertTrue(longChain[0] <= DefaultPromise.MAX_NOTIFICATION_DEPTH);
+		assertEquals(shortChain[0], longChain[0]);
+		assertEquals(shortChain[1], longChain[1]);
+	}
+
+	@Test(timeout = 10000)
+	public void failsFlatMapReturningItsSource() {
+		final DefaultPromise<Integer> source = new DefaultPromise<>();
+		final IFuture<Integer> result = source.flatMap(v -> source);
+		source.setSuccess(1);
+		assertTrue(result.isDone());
+		assertTrue(result.cause() instanceof IllegalStateException);
+	}
+
+	@Test
+	public void zipsTwoFutures() {
+		final DefaultPromise<Integer> a = new DefaultPromise<>();
+		final DefaultPromise<String> b = new DefaultPromise<>();
+		final IFuture<String> zipped = a.zip(b, (x, y) -> y + x);
+		a.setSuccess(1);
+		assertTrue(!zipped.isDone());
+		b.setSuccess("b");
+		assertEquals("b1", zipped.getNow());
+	}
+
+	/**
+	 * Builds a chain alternating map stages and listeners that complete the
+	 * next promise, completes its head and returns the most notifications
+	 * seen nested on the stack and the most stack frames seen
+	 */
+	private static int[] mixedChainDepth(int length) {
+		final int[] max = new int[2];
+		final Runnable sample = () -> {
+			final StackTraceElement[] stack = Thread.currentThread()
+					.getStackTrace();
+			// every listener and stage is an operationCompleted frame
+			int nested = 0;
+			for (StackTraceElement e : stack) {
+				if (e.getMethodName().equals("operationCompleted")) {
+					nested++;
+				}
+			}
+			max[0] = Math.max(max[0], nested);
+			max[1] = Math.max(max[1], stack.length);
+		};
+
+		final DefaultPromise<Integer> head = new DefaultPromise<>();
+		IFuture<Integer> tail = head;
+		for (int i = 0; i < length; i++) {
+			if ((i & 1) == 0) {
+				tail = tail.map(v -> {
+					sample.run();
+					return v + 1;
+				});
+			} else {
+				final DefaultPromise<Integer> next = new DefaultPromise<>();
+				tail.addListener(new IFutureListener<IFuture<Integer>>() {
+					@Override
+					public void operationCompleted(IFuture<Integer> f) {
+						sample.run();
+						next.setSuccess(f.getNow() + 1);
+					}
+				});
+				tail = next;
+			}
+		}
+		head.setSuccess(0);
+		assertEquals(Integer.valueOf(length), tail.getNow());
+		return max;
+	}
+
+	private static void runWithSmallStack(Runnable test) throws Throwable {
+		final AtomicReference<Throwable> failure = new AtomicReference<>();
+		final Thread t = new Thread(null, () -> {
+			try {
+				test.run();
+			} catch (Throwable e) {
+				failure.set(e);
+			}
+		}, "small-stack", STACK_SIZE);
+		t.start();
+		t.join();
+		if (failure.get() != null) {
+			throw failure.get();
+		}
+	}
+}